@@ -0,0 +1,418 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Using Algorithms(Fourth Edition, Robert Sedgewick, Kevin Wayne), left-leaning red black trees,
+as a reference
+
+Java API: Compact Augmenting Red Black Tree, the same operations as RBTree with a smaller node.
+A node keeps only val, left, right and one int, the color is the sign bit of the int and the
+size of the subtree rooted from the node is the rest. There is no parent pointer, insert() and
+delete() keep the path on the recursion stack, and rank, next and previous are answered top down
+by the subtree sizes, allow duplicates
+
+With compressed oops a node is 12 bytes header + 3 references + 1 int = 28, padded to 32 bytes,
+an RBTree node is 40 bytes (the parent pointer, two booleans and the hidden reference to the
+enclosing tree)
+
+Usage:
+
+constructor(1):
+public class CompactRBTree<T extends Comparable<T>>
+eg: CompactRBTree<T> root = new CompactRBTree<T>()
+
+manipulate class method(2):
+public void insert(T key), insert key to a tree, O(lg(n))
+eg: root.insert(key)
+
+public void delete(T key), delete the first entry in order equal to key if exists,
+                           else throw NoSuchElementException, O(lg(n))
+eg: root.delete(key)
+
+other class methods(14):
+public boolean isEmpty(), O(1)
+public int size(), return the size of this tree, O(1)
+public void check(), check the red black tree properties and each node's size
+public int getBlackHeight(), O(lg(n))
+public boolean contains(T key), O(lg(n))
+public int getRankOfEntry(T key), return the rank of the first entry in order equal to key,
+                     if this key is not in the tree, throw NoSuchElementException, O(lg(n))
+public T getKthEntry(int k), return the kth smallest value, O(lg(n))
+public T previous(T key), public boolean hasPrevious(T key),
+public T next(T key), public boolean hasNext(T key), the same as RBTree, the first entry in
+                     order equal to key is used, O(lg(n))
+public T min(), public T max(), O(lg(n))
+public ArrayList<T> getAllEntries(), get all entries in order, O(n)
+
+to compare the memory and throughput with RBTree:
+javac CompactRBTree.java RBTree.java
+java CompactRBTree
+
+***************************************************************************************************/
+
+
+import java.util.*;
+import java.util.NoSuchElementException;
+
+public class CompactRBTree<T extends Comparable<T>>{
+	private static final int RED = 0x80000000;	// color bit of Node.N
+	private static final int SIZE = 0x7fffffff;
+
+	private Node<T> root; //root of CompactRBTree
+
+	private static final class Node<T>{
+		private T val;
+		private Node<T> left, right;
+		private int N; // color bit | number of nodes rooted from this node
+		public Node(T v, int n){
+			val = v;
+			N = n;
+		}
+	}
+
+	private static boolean isRed(Node<?> x){
+		return x!=null && x.N<0;
+	}
+
+	private static int size(Node<?> x){
+		if(x==null) return 0;
+		return x.N & SIZE;
+	}
+
+	private static void fixSize(Node<?> x){
+		x.N = (x.N & RED) | (size(x.left) + size(x.right) + 1);
+	}
+
+	private static void setColor(Node<?> x, boolean red){
+		if(red) x.N |= RED;
+		else x.N &= SIZE;
+	}
+
+	// insert node to red black tree
+
+	public void insert(T key){
+		root = insert(root, key);
+		setColor(root, false);
+	}
+
+	private Node<T> insert(Node<T> h, T key){
+		if(h==null) return new Node<T>(key, RED | 1);
+		if(key.compareTo(h.val)<0) h.left = insert(h.left, key);
+		else h.right = insert(h.right, key);
+		h.N++;
+		if(isRed(h.right) && !isRed(h.left)) h = rotateLeft(h);
+		if(isRed(h.left) && isRed(h.left.left)) h = rotateRight(h);
+		if(isRed(h.left) && isRed(h.right)) flipColors(h);
+		return h;
+	}
+
+	// delete red black tree's node
+
+	public void delete(T key){
+		int r = rank(key);
+		if(r<0) throw new NoSuchElementException("not exist");
+		if(!isRed(root.left) && !isRed(root.right)) setColor(root, true);
+		root = delete(root, r);
+		if(root!=null) setColor(root, false);
+	}
+
+	// delete the kth node rooted from h, k is 0 based, the position is used instead of the key
+	// since a rotation may lift a duplicate of key above the node being deleted
+	private Node<T> delete(Node<T> h, int k){
+		if(k<size(h.left)){
+			if(!isRed(h.left) && !isRed(h.left.left)) h = moveRedLeft(h);
+			h.left = delete(h.left, k);
+		}
+		else{
+			if(isRed(h.left)) h = rotateRight(h);
+			if(k==size(h.left) && h.right==null) return null;
+			if(!isRed(h.right) && !isRed(h.right.left)) h = moveRedRight(h);
+			if(k==size(h.left)){
+				h.val = min(h.right).val;
+				h.right = deleteMin(h.right);
+			}
+			else h.right = delete(h.right, k - size(h.left) - 1);
+		}
+		return balance(h);
+	}
+
+	private Node<T> deleteMin(Node<T> h){
+		if(h.left==null) return null;
+		if(!isRed(h.left) && !isRed(h.left.left)) h = moveRedLeft(h);
+		h.left = deleteMin(h.left);
+		return balance(h);
+	}
+
+	// rotateLeft, rotateRight, flipColors, moveRedLeft, moveRedRight, balance
+
+	private Node<T> rotateLeft(Node<T> h){
+		Node<T> x = h.right;
+		h.right = x.left;
+		x.left = h;
+		// x takes h's color and size, h becomes red
+		x.N = h.N;
+		h.N |= RED;
+		fixSize(h);
+		return x;
+	}
+
+	private Node<T> rotateRight(Node<T> h){
+		Node<T> x = h.left;
+		h.left = x.right;
+		x.right = h;
+		x.N = h.N;
+		h.N |= RED;
+		fixSize(h);
+		return x;
+	}
+
+	private void flipColors(Node<T> h){
+		h.N ^= RED;
+		h.left.N ^= RED;
+		h.right.N ^= RED;
+	}
+
+	// h is red and both h.left and h.left.left are black, make h.left or one of its children red
+	private Node<T> moveRedLeft(Node<T> h){
+		flipColors(h);
+		if(isRed(h.right.left)){
+			h.right = rotateRight(h.right);
+			h = rotateLeft(h);
+			flipColors(h);
+		}
+		return h;
+	}
+
+	// h is red and both h.right and h.right.left are black, make h.right or one of its children red
+	private Node<T> moveRedRight(Node<T> h){
+		flipColors(h);
+		if(isRed(h.left.left)){
+			h = rotateRight(h);
+			flipColors(h);
+		}
+		return h;
+	}
+
+	// restore the left-leaning red black tree properties on the way up
+	private Node<T> balance(Node<T> h){
+		if(isRed(h.right) && !isRed(h.left)) h = rotateLeft(h);
+		if(isRed(h.left) && isRed(h.left.left)) h = rotateRight(h);
+		if(isRed(h.left) && isRed(h.right)) flipColors(h);
+		fixSize(h);
+		return h;
+	}
+
+	// number of entries smaller than key, negative (-rank - 1) if key is not in the tree
+	private int rank(T key){
+		Node<T> x = root;
+		Node<T> candidate = null;	// the last node where the search turned left
+		int r = 0;
+		while(x!=null){
+			if(key.compareTo(x.val)<=0){
+				candidate = x;
+				x = x.left;
+			}
+			else{
+				r += size(x.left) + 1;
+				x = x.right;
+			}
+		}
+		if(candidate==null || key.compareTo(candidate.val)!=0) return -r - 1;
+		return r;
+	}
+
+	// kth entry, k is 0 based
+	private Node<T> select(int k){
+		Node<T> x = root;
+		while(true){
+			int t = size(x.left);
+			if(k<t) x = x.left;
+			else if(k>t){
+				k -= t + 1;
+				x = x.right;
+			}
+			else return x;
+		}
+	}
+
+	// verify Red Black Tree
+
+	public void check(){
+		if(root==null) return;
+		System.out.println("root.val: " + root.val + " root.N: " + size(root));
+		System.out.println("RB tree's black height: " + getBlackHeight());
+		if(check(root, null, null) && isBalanced(root, getBlackHeight())) System.out.println("true RB tree");
+		else System.out.println("false RB tree");
+	}
+
+	private boolean check(Node<T> x, T lo, T hi){
+		if(x==null) return true;
+		if(size(x)!=size(x.left) + size(x.right) + 1) return false;
+		if(isRed(x.right)) return false;
+		if(isRed(x) && isRed(x.left)) return false;
+		if(lo!=null && x.val.compareTo(lo)<0) return false;
+		if(hi!=null && x.val.compareTo(hi)>0) return false;
+		return check(x.left, lo, x.val) && check(x.right, x.val, hi);
+	}
+
+	// every path from x to null has black black nodes
+	private boolean isBalanced(Node<T> x, int black){
+		if(x==null) return black==0;
+		if(!isRed(x)) black--;
+		return isBalanced(x.left, black) && isBalanced(x.right, black);
+	}
+
+	public int getBlackHeight(){
+		int height = 0;
+		for(Node<T> x=root; x!=null; x=x.left){
+			if(!isRed(x)) height++;
+		}
+		return height;
+	}
+
+	// additional utility functions
+
+	public boolean isEmpty(){
+		return root==null;
+	}
+
+	public int size(){
+		return size(root);
+	}
+
+	public boolean contains(T key){
+		Node<T> x = root;
+		while(x!=null){
+			int cmp = key.compareTo(x.val);
+			if(cmp<0) x = x.left;
+			else if(cmp>0) x = x.right;
+			else return true;
+		}
+		return false;
+	}
+
+	public int getRankOfEntry(T key){
+		int r = rank(key);
+		if(r<0) throw new NoSuchElementException("the entry is not in this tree");
+		return r + 1;
+	}
+
+	public T getKthEntry(int k){
+		if(k<=0 || k>size(root)) throw new NoSuchElementException("k exists size of tree");
+		return select(k - 1).val;
+	}
+
+	public T previous(T key){
+		int r = rank(key);
+		if(r<0) throw new NoSuchElementException("the entry is not in this tree");
+		if(r==0) throw new NoSuchElementException("this entry has no predecessor");
+		return select(r - 1).val;
+	}
+
+	public boolean hasPrevious(T key){
+		int r = rank(key);
+		if(r<0) throw new NoSuchElementException("the entry is not in this tree");
+		return r>0;
+	}
+
+	public T next(T key){
+		int r = rank(key);
+		if(r<0) throw new NoSuchElementException("the entry is not in this tree");
+		if(r + 1>=size(root)) throw new NoSuchElementException("this entry has no successor");
+		return select(r + 1).val;
+	}
+
+	public boolean hasNext(T key){
+		int r = rank(key);
+		if(r<0) throw new NoSuchElementException("the entry is not in this tree");
+		return r + 1<size(root);
+	}
+
+	public T min(){
+		Node<T> x = min(root);
+		if(x==null) throw new NoSuchElementException("not exist");
+		return x.val;
+	}
+
+	private Node<T> min(Node<T> x){
+		while(x!=null && x.left!=null) x = x.left;
+		return x;
+	}
+
+	public T max(){
+		Node<T> x = root;
+		while(x!=null && x.right!=null) x = x.right;
+		if(x==null) throw new NoSuchElementException("not exist");
+		return x.val;
+	}
+
+	public ArrayList<T> getAllEntries(){
+		ArrayList<T> list = new ArrayList<T>();
+		getAllEntries(root, list);
+		return list;
+	}
+
+	private void getAllEntries(Node<T> x, ArrayList<T> list){
+		if(x==null) return;
+		getAllEntries(x.left, list);
+		list.add(x.val);
+		getAllEntries(x.right, list);
+	}
+
+	public static void main(String[] args){
+		int num = 1000000;
+		if(args.length>0) num = Integer.parseInt(args[0]);
+		Random rnd = new Random();
+		// box the keys up front so they are not counted as tree memory
+		Integer[] A = new Integer[num];
+		for(int i=0; i<num; i++) A[i] = rnd.nextInt();
+		Integer[] Q = new Integer[num];
+		for(int i=0; i<num; i++) Q[i] = A[rnd.nextInt(num)];
+
+		for(int round=0; round<2; round++){
+			System.out.println("round " + (round + 1) + ":");
+			long before = usedMemory();
+			RBTree<Integer> rbtree = new RBTree<Integer>();
+			long starttime = System.currentTimeMillis();
+			for(int i=0; i<num; i++) rbtree.insert(A[i]);
+			long elapsetime = System.currentTimeMillis() - starttime;
+			long bytes = usedMemory() - before;
+			System.out.println("RBTree insert: " + num + " ops, elapsed time: " + elapsetime + "ms, "
+				+ (double) bytes / num + " bytes per entry");
+			starttime = System.currentTimeMillis();
+			long sink = 0;
+			for(int i=0; i<num; i++) sink += rbtree.getRankOfEntry(Q[i]);
+			System.out.println("RBTree getRankOfEntry: " + num + " ops, elapsed time: " + (System.currentTimeMillis() - starttime) + "ms");
+			starttime = System.currentTimeMillis();
+			for(int i=0; i<num; i+=2) rbtree.delete(A[i]);
+			System.out.println("RBTree delete: " + num / 2 + " ops, elapsed time: " + (System.currentTimeMillis() - starttime) + "ms");
+			rbtree = null;
+
+			before = usedMemory();
+			CompactRBTree<Integer> compact = new CompactRBTree<Integer>();
+			starttime = System.currentTimeMillis();
+			for(int i=0; i<num; i++) compact.insert(A[i]);
+			elapsetime = System.currentTimeMillis() - starttime;
+			bytes = usedMemory() - before;
+			System.out.println("CompactRBTree insert: " + num + " ops, elapsed time: " + elapsetime + "ms, "
+				+ (double) bytes / num + " bytes per entry");
+			starttime = System.currentTimeMillis();
+			for(int i=0; i<num; i++) sink += compact.getRankOfEntry(Q[i]);
+			System.out.println("CompactRBTree getRankOfEntry: " + num + " ops, elapsed time: " + (System.currentTimeMillis() - starttime) + "ms");
+			starttime = System.currentTimeMillis();
+			for(int i=0; i<num; i+=2) compact.delete(A[i]);
+			System.out.println("CompactRBTree delete: " + num / 2 + " ops, elapsed time: " + (System.currentTimeMillis() - starttime) + "ms");
+			compact.check();
+			compact = null;
+			if(sink==42) System.out.println();
+		}
+	}
+
+	// heap in use after a full collection
+	private static long usedMemory(){
+		Runtime rt = Runtime.getRuntime();
+		for(int i=0; i<3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
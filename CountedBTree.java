@@ -0,0 +1,603 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Java API: Counted B+ Tree, a high fanout alternative to RBTree with the same order statistic
+operations. Every inner node keeps a sorted array of separator keys plus the number of entries
+stored under each child, leaves keep sorted key arrays and are linked for scans, so a search
+touches O(log_B(n)) nodes instead of O(lg(n)), allow duplicates
+
+Usage:
+
+constructor(1):
+public class CountedBTree<T extends Comparable<T>>
+eg: CountedBTree<T> tree = new CountedBTree<T>()
+
+manipulate class method(2):
+public void insert(T key), insert key to the tree, after the entries equal to key,
+                           O(B*log_B(n)), B is the fanout of a node
+eg: tree.insert(key)
+
+public void delete(T key), delete the first entry in order equal to key if exists,
+                           else throw NoSuchElementException
+                           O(B*log_B(n))
+eg: tree.delete(key)
+
+other class methods(13):
+public boolean isEmpty(), judge whether this tree is empty, O(1)
+public int size(), return the size of this tree, O(1)
+public void check(), check the entries are sorted, each node's counts are compatible,
+                     each node except the root is at least half full and all leaves
+                     are at the same depth
+public boolean contains(T key), O(log(n))
+public int getRankOfEntry(T key), return the rank of the first entry in order equal to key,
+                     if this key is not in the tree, throw NoSuchElementException, O(log(n))
+public T getKthEntry(int k), return the kth smallest value, O(log(n))
+public T previous(T key), public boolean hasPrevious(T key),
+public T next(T key), public boolean hasNext(T key), the same as RBTree, the first entry in
+                     order equal to key is used, O(log(n))
+public T min(), public T max(), O(log_B(n))
+
+to benchmark against RBTree:
+javac CountedBTree.java RBTree.java
+java -Xmx8g CountedBTree 1000000 10000000 100000000
+(100M keys needs a large heap, RBTree alone uses about 5GB for it)
+
+***************************************************************************************************/
+
+
+import java.util.*;
+import java.util.NoSuchElementException;
+
+public class CountedBTree<T extends Comparable<T>>{
+	private static final int MAX = 64;		// max keys in a leaf, max children of an inner node
+	private static final int MIN = MAX / 2;
+
+	private Node root;	// root of the tree, never null, an empty tree is an empty leaf
+	private int size;	// number of entries in the tree
+	private Object splitKey;	// separator pushed up by the last split
+
+	private static abstract class Node{
+		int n;	// number of keys in a leaf, number of children in an inner node
+		Object[] keys;
+		abstract boolean isLeaf();
+	}
+
+	private static final class Leaf extends Node{
+		Leaf prev, next;	// linked leaves for scans
+		Leaf(){
+			keys = new Object[MAX + 1];
+		}
+		boolean isLeaf(){ return true; }
+	}
+
+	private static final class Inner extends Node{
+		// keys[i] separates children[i] and children[i+1]:
+		// entries under children[i] <= keys[i] <= entries under children[i+1]
+		Node[] children = new Node[MAX + 1];
+		int[] counts = new int[MAX + 1];	// number of entries under each child
+		Inner(){
+			keys = new Object[MAX];
+		}
+		boolean isLeaf(){ return false; }
+	}
+
+	// position of an entry in a leaf, along with its rank
+	private static final class Position{
+		Leaf leaf;
+		int pos;
+		int rank;	// 0 based
+	}
+
+	public CountedBTree(){
+		root = new Leaf();
+	}
+
+	@SuppressWarnings("unchecked")
+	private int compare(Object a, T key){
+		return ((T) a).compareTo(key);
+	}
+
+	@SuppressWarnings("unchecked")
+	private T key(Object a){
+		return (T) a;
+	}
+
+	private static int count(Node x){
+		if(x.isLeaf()) return x.n;
+		Inner in = (Inner) x;
+		int c = 0;
+		for(int i=0; i<in.n; i++) c += in.counts[i];
+		return c;
+	}
+
+	// insert key to b+ tree
+
+	public void insert(T key){
+		Node s = insert(root, key);
+		if(s!=null){
+			Inner r = new Inner();
+			r.children[0] = root;
+			r.counts[0] = count(root);
+			r.children[1] = s;
+			r.counts[1] = count(s);
+			r.keys[0] = splitKey;
+			r.n = 2;
+			root = r;
+		}
+		size++;
+	}
+
+	// returns the new right sibling if x was split, else null
+	private Node insert(Node x, T key){
+		if(x.isLeaf()){
+			Leaf leaf = (Leaf) x;
+			int pos = upperBound(leaf.keys, leaf.n, key);
+			System.arraycopy(leaf.keys, pos, leaf.keys, pos + 1, leaf.n - pos);
+			leaf.keys[pos] = key;
+			leaf.n++;
+			if(leaf.n<=MAX) return null;
+			return splitLeaf(leaf);
+		}
+		Inner in = (Inner) x;
+		int i = upperBound(in.keys, in.n - 1, key);
+		Node s = insert(in.children[i], key);
+		in.counts[i]++;
+		if(s==null) return null;
+		int c = count(s);
+		in.counts[i] -= c;
+		System.arraycopy(in.children, i + 1, in.children, i + 2, in.n - i - 1);
+		System.arraycopy(in.counts, i + 1, in.counts, i + 2, in.n - i - 1);
+		System.arraycopy(in.keys, i, in.keys, i + 1, in.n - 1 - i);
+		in.children[i + 1] = s;
+		in.counts[i + 1] = c;
+		in.keys[i] = splitKey;
+		in.n++;
+		if(in.n<=MAX) return null;
+		return splitInner(in);
+	}
+
+	private Leaf splitLeaf(Leaf leaf){
+		Leaf right = new Leaf();
+		int h = leaf.n / 2;
+		right.n = leaf.n - h;
+		System.arraycopy(leaf.keys, h, right.keys, 0, right.n);
+		Arrays.fill(leaf.keys, h, leaf.n, null);
+		leaf.n = h;
+		right.next = leaf.next;
+		if(right.next!=null) right.next.prev = right;
+		right.prev = leaf;
+		leaf.next = right;
+		splitKey = right.keys[0];
+		return right;
+	}
+
+	private Inner splitInner(Inner in){
+		Inner right = new Inner();
+		int h = in.n / 2;
+		right.n = in.n - h;
+		System.arraycopy(in.children, h, right.children, 0, right.n);
+		System.arraycopy(in.counts, h, right.counts, 0, right.n);
+		System.arraycopy(in.keys, h, right.keys, 0, right.n - 1);
+		splitKey = in.keys[h - 1];
+		Arrays.fill(in.children, h, in.n, null);
+		Arrays.fill(in.keys, h - 1, in.n - 1, null);
+		in.n = h;
+		return right;
+	}
+
+	// delete b+ tree's entry
+
+	public void delete(T key){
+		Position p = seek(key);
+		if(p==null) throw new NoSuchElementException("not exist");
+		deleteAt(root, p.rank);
+		size--;
+		if(!root.isLeaf() && root.n==1) root = ((Inner) root).children[0];
+	}
+
+	// delete the kth entry rooted from x, k is 0 based
+	private void deleteAt(Node x, int k){
+		if(x.isLeaf()){
+			System.arraycopy(x.keys, k + 1, x.keys, k, x.n - k - 1);
+			x.n--;
+			x.keys[x.n] = null;
+			return;
+		}
+		Inner in = (Inner) x;
+		int i = 0;
+		while(k>=in.counts[i]){
+			k -= in.counts[i];
+			i++;
+		}
+		Node child = in.children[i];
+		deleteAt(child, k);
+		in.counts[i]--;
+		if(child.n<MIN) fix(in, i);
+	}
+
+	// child i of x is less than half full, borrow from or merge with a sibling
+	private void fix(Inner x, int i){
+		int j = i>0 ? i - 1 : i;
+		Node l = x.children[j];
+		Node r = x.children[j + 1];
+		if(l.n + r.n<=MAX){
+			merge(x, j);
+			return;
+		}
+		if(l.isLeaf()){
+			Leaf ll = (Leaf) l, rl = (Leaf) r;
+			if(ll.n<rl.n){
+				ll.keys[ll.n++] = rl.keys[0];
+				System.arraycopy(rl.keys, 1, rl.keys, 0, rl.n - 1);
+				rl.keys[--rl.n] = null;
+				x.counts[j]++;
+				x.counts[j + 1]--;
+			}
+			else{
+				System.arraycopy(rl.keys, 0, rl.keys, 1, rl.n);
+				rl.keys[0] = ll.keys[--ll.n];
+				ll.keys[ll.n] = null;
+				rl.n++;
+				x.counts[j]--;
+				x.counts[j + 1]++;
+			}
+			x.keys[j] = rl.keys[0];
+			return;
+		}
+		Inner li = (Inner) l, ri = (Inner) r;
+		if(li.n<ri.n){
+			// rotate the first child of r through the separator into l
+			int c = ri.counts[0];
+			li.children[li.n] = ri.children[0];
+			li.counts[li.n] = c;
+			li.keys[li.n - 1] = x.keys[j];
+			li.n++;
+			x.keys[j] = ri.keys[0];
+			System.arraycopy(ri.children, 1, ri.children, 0, ri.n - 1);
+			System.arraycopy(ri.counts, 1, ri.counts, 0, ri.n - 1);
+			System.arraycopy(ri.keys, 1, ri.keys, 0, ri.n - 2);
+			ri.n--;
+			ri.children[ri.n] = null;
+			ri.keys[ri.n - 1] = null;
+			x.counts[j] += c;
+			x.counts[j + 1] -= c;
+		}
+		else{
+			// rotate the last child of l through the separator into r
+			int c = li.counts[li.n - 1];
+			System.arraycopy(ri.children, 0, ri.children, 1, ri.n);
+			System.arraycopy(ri.counts, 0, ri.counts, 1, ri.n);
+			System.arraycopy(ri.keys, 0, ri.keys, 1, ri.n - 1);
+			ri.children[0] = li.children[li.n - 1];
+			ri.counts[0] = c;
+			ri.keys[0] = x.keys[j];
+			ri.n++;
+			x.keys[j] = li.keys[li.n - 2];
+			li.n--;
+			li.children[li.n] = null;
+			li.keys[li.n - 1] = null;
+			x.counts[j] -= c;
+			x.counts[j + 1] += c;
+		}
+	}
+
+	// merge child j+1 of x into child j
+	private void merge(Inner x, int j){
+		Node l = x.children[j];
+		Node r = x.children[j + 1];
+		if(l.isLeaf()){
+			Leaf ll = (Leaf) l, rl = (Leaf) r;
+			System.arraycopy(rl.keys, 0, ll.keys, ll.n, rl.n);
+			ll.n += rl.n;
+			ll.next = rl.next;
+			if(ll.next!=null) ll.next.prev = ll;
+		}
+		else{
+			Inner li = (Inner) l, ri = (Inner) r;
+			li.keys[li.n - 1] = x.keys[j];
+			System.arraycopy(ri.keys, 0, li.keys, li.n, ri.n - 1);
+			System.arraycopy(ri.children, 0, li.children, li.n, ri.n);
+			System.arraycopy(ri.counts, 0, li.counts, li.n, ri.n);
+			li.n += ri.n;
+		}
+		x.counts[j] += x.counts[j + 1];
+		System.arraycopy(x.children, j + 2, x.children, j + 1, x.n - j - 2);
+		System.arraycopy(x.counts, j + 2, x.counts, j + 1, x.n - j - 2);
+		System.arraycopy(x.keys, j + 1, x.keys, j, x.n - j - 2);
+		x.n--;
+		x.children[x.n] = null;
+		x.keys[x.n - 1] = null;
+	}
+
+	// binary search in sorted keys[0..n)
+
+	// number of keys strictly smaller than key
+	private int lowerBound(Object[] keys, int n, T key){
+		int lo = 0, hi = n;
+		while(lo<hi){
+			int mid = (lo + hi) >>> 1;
+			if(compare(keys[mid], key)<0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// number of keys smaller than or equal to key
+	private int upperBound(Object[] keys, int n, T key){
+		int lo = 0, hi = n;
+		while(lo<hi){
+			int mid = (lo + hi) >>> 1;
+			if(compare(keys[mid], key)<=0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// position of the first entry in order equal to key, null if not exists
+	private Position seek(T key){
+		Node x = root;
+		int rank = 0;
+		while(!x.isLeaf()){
+			Inner in = (Inner) x;
+			int i = lowerBound(in.keys, in.n - 1, key);
+			for(int c=0; c<i; c++) rank += in.counts[c];
+			x = in.children[i];
+		}
+		Leaf leaf = (Leaf) x;
+		int pos = lowerBound(leaf.keys, leaf.n, key);
+		rank += pos;
+		// all entries of this leaf are smaller than key, the first one of the next leaf is the candidate
+		if(pos==leaf.n){
+			leaf = leaf.next;
+			pos = 0;
+		}
+		if(leaf==null || compare(leaf.keys[pos], key)!=0) return null;
+		Position p = new Position();
+		p.leaf = leaf;
+		p.pos = pos;
+		p.rank = rank;
+		return p;
+	}
+
+	// additional utility functions
+
+	public boolean isEmpty(){
+		return size==0;
+	}
+
+	public int size(){
+		return size;
+	}
+
+	public boolean contains(T key){
+		return seek(key)!=null;
+	}
+
+	public int getRankOfEntry(T key){
+		Position p = seek(key);
+		if(p==null) throw new NoSuchElementException("the entry is not in this tree");
+		return p.rank + 1;
+	}
+
+	public T getKthEntry(int k){
+		if(k<=0 || k>size) throw new NoSuchElementException("k exists size of tree");
+		k--;
+		Node x = root;
+		while(!x.isLeaf()){
+			Inner in = (Inner) x;
+			int i = 0;
+			while(k>=in.counts[i]){
+				k -= in.counts[i];
+				i++;
+			}
+			x = in.children[i];
+		}
+		return key(x.keys[k]);
+	}
+
+	public T previous(T key){
+		Position p = previous(seek(key));
+		if(p==null) throw new NoSuchElementException("this entry has no predecessor");
+		return key(p.leaf.keys[p.pos]);
+	}
+
+	public boolean hasPrevious(T key){
+		return previous(seek(key))!=null;
+	}
+
+	private Position previous(Position p){
+		if(p==null) throw new NoSuchElementException("the entry is not in this tree");
+		if(p.pos>0) p.pos--;
+		else{
+			p.leaf = p.leaf.prev;
+			if(p.leaf==null) return null;
+			p.pos = p.leaf.n - 1;
+		}
+		p.rank--;
+		return p;
+	}
+
+	public T next(T key){
+		Position p = next(seek(key));
+		if(p==null) throw new NoSuchElementException("this entry has no successor");
+		return key(p.leaf.keys[p.pos]);
+	}
+
+	public boolean hasNext(T key){
+		return next(seek(key))!=null;
+	}
+
+	private Position next(Position p){
+		if(p==null) throw new NoSuchElementException("the entry is not in this tree");
+		if(p.pos<p.leaf.n - 1) p.pos++;
+		else{
+			p.leaf = p.leaf.next;
+			if(p.leaf==null) return null;
+			p.pos = 0;
+		}
+		p.rank++;
+		return p;
+	}
+
+	public T min(){
+		if(size==0) throw new NoSuchElementException("not exist");
+		Node x = root;
+		while(!x.isLeaf()) x = ((Inner) x).children[0];
+		return key(x.keys[0]);
+	}
+
+	public T max(){
+		if(size==0) throw new NoSuchElementException("not exist");
+		Node x = root;
+		while(!x.isLeaf()) x = ((Inner) x).children[x.n - 1];
+		return key(x.keys[x.n - 1]);
+	}
+
+	// verify b+ tree
+
+	public void check(){
+		System.out.println("size: " + size + " height: " + getHeight());
+		boolean ok = check(root, null, null, true)==size;
+		// the leaf chain visits every entry in order
+		Node x = root;
+		while(!x.isLeaf()) x = ((Inner) x).children[0];
+		int c = 0;
+		Object last = null;
+		for(Leaf leaf=(Leaf) x; leaf!=null; leaf=leaf.next){
+			if(leaf.next!=null && leaf.next.prev!=leaf) ok = false;
+			for(int i=0; i<leaf.n; i++){
+				if(last!=null && compare(last, key(leaf.keys[i]))>0) ok = false;
+				last = leaf.keys[i];
+				c++;
+			}
+		}
+		if(c!=size) ok = false;
+		if(ok) System.out.println("true B+ tree");
+		else System.out.println("false B+ tree");
+	}
+
+	// return the number of entries rooted from x, -1 if x violates the b+ tree properties
+	private int check(Node x, Object lo, Object hi, boolean isRoot){
+		if(!isRoot && x.n<MIN) return -1;
+		if(x.isLeaf()){
+			for(int i=0; i<x.n; i++){
+				if(lo!=null && compare(lo, key(x.keys[i]))>0) return -1;
+				if(hi!=null && compare(hi, key(x.keys[i]))<0) return -1;
+			}
+			return x.n;
+		}
+		Inner in = (Inner) x;
+		if(in.n<2) return -1;
+		int total = 0;
+		int depth = -1;
+		for(int i=0; i<in.n; i++){
+			Object l = i==0 ? lo : in.keys[i - 1];
+			Object h = i==in.n - 1 ? hi : in.keys[i];
+			int c = check(in.children[i], l, h, false);
+			if(c!=in.counts[i]) return -1;
+			int d = getHeight(in.children[i]);
+			if(depth!=-1 && d!=depth) return -1;
+			depth = d;
+			total += c;
+		}
+		return total;
+	}
+
+	public int getHeight(){
+		return getHeight(root);
+	}
+
+	private int getHeight(Node x){
+		int height = 1;
+		while(!x.isLeaf()){
+			x = ((Inner) x).children[0];
+			height++;
+		}
+		return height;
+	}
+
+	public static void main(String[] args){
+		int[] sizes = {1000000};
+		if(args.length>0){
+			sizes = new int[args.length];
+			for(int i=0; i<args.length; i++) sizes[i] = Integer.parseInt(args[i]);
+		}
+		for(int num : sizes){
+			System.out.println("n = " + num + ":");
+			Random rnd = new Random(num);
+			Integer[] A = new Integer[num];
+			for(int i=0; i<num; i++) A[i] = rnd.nextInt();
+			int querynum = Math.min(num, 1000000);
+			Integer[] Q = new Integer[querynum];
+			int[] K = new int[querynum];
+			for(int i=0; i<querynum; i++){
+				Q[i] = A[rnd.nextInt(num)];
+				K[i] = rnd.nextInt(num) + 1;
+			}
+
+			CountedBTree<Integer> btree = new CountedBTree<Integer>();
+			bench(btree, null, A, Q, K);
+			btree.check();
+			btree = null;
+
+			RBTree<Integer> rbtree = new RBTree<Integer>();
+			bench(null, rbtree, A, Q, K);
+			rbtree.check();
+			rbtree = null;
+			System.out.println();
+		}
+	}
+
+	// time the same workload on either tree
+	private static void bench(CountedBTree<Integer> btree, RBTree<Integer> rbtree, Integer[] A, Integer[] Q, int[] K){
+		String name = btree!=null ? "CountedBTree" : "RBTree";
+		long sink = 0;
+
+		long starttime = System.currentTimeMillis();
+		for(int i=0; i<A.length; i++){
+			if(btree!=null) btree.insert(A[i]);
+			else rbtree.insert(A[i]);
+		}
+		report(name, "insert", A.length, starttime);
+
+		starttime = System.currentTimeMillis();
+		for(int i=0; i<Q.length; i++){
+			if(btree!=null ? btree.contains(Q[i]) : rbtree.contains(Q[i])) sink++;
+		}
+		report(name, "contains", Q.length, starttime);
+
+		starttime = System.currentTimeMillis();
+		for(int i=0; i<K.length; i++){
+			sink += btree!=null ? btree.getKthEntry(K[i]) : rbtree.getKthEntry(K[i]);
+		}
+		report(name, "getKthEntry", K.length, starttime);
+
+		starttime = System.currentTimeMillis();
+		for(int i=0; i<Q.length; i++){
+			sink += btree!=null ? btree.getRankOfEntry(Q[i]) : rbtree.getRankOfEntry(Q[i]);
+		}
+		report(name, "getRankOfEntry", Q.length, starttime);
+
+		// delete the first half of the queries, they are distinct entries unless duplicated in A
+		int deletenum = Q.length / 2;
+		starttime = System.currentTimeMillis();
+		for(int i=0; i<deletenum; i++){
+			try{
+				if(btree!=null) btree.delete(Q[i]);
+				else rbtree.delete(Q[i]);
+			}
+			catch(NoSuchElementException e){
+				sink++;
+			}
+		}
+		report(name, "delete", deletenum, starttime);
+		if(sink==42) System.out.println();
+	}
+
+	private static void report(String name, String op, int count, long starttime){
+		long elapsetime = System.currentTimeMillis() - starttime;
+		System.out.println(name + " " + op + ": " + count + " ops, elapsed time: " + elapsetime + "ms");
+	}
+}
@@ -19,10 +19,11 @@ public class RBTree<T extends Comparable<T>>
 eg: RBTree<T> root = new RBTree<T>()
 
 manipulate class method(2):
-public void insert(T key), insert key to a tree, O(lg(n)) theoretically,
+public Handle<T> insert(T key), insert key to a tree, O(lg(n)) theoretically,
 						   in practice, may plus O(h) maitain node's size 
 						   time, and at most 3 constant time rotated 
 						   operations, h is the height of tree
+						   return a handle of the new node, the caller may ignore it
 eg: root.insert(key), insert key to the tree rooted from root
 
 public void delete(T key), delete key from a tree if exists,
@@ -35,7 +36,30 @@ public void delete(T key), delete key from a tree if exists,
 eg: root.delete(key), delete key from the tree rooted from root if exists,
 	else throw NoSuchElementException
 
-other class methods(18):
+handle class methods(5):
+a handle is the node holding one entry, it stays valid until that entry is deleted, so
+duplicates can be told apart and the search from root is skipped, a handle that is deleted
+or belongs to another tree throws NoSuchElementException
+
+public void delete(Handle<T> h), delete the entry of h, the same cost as delete(T key)
+						   without the search
+eg: root.delete(h)
+
+public int rank(Handle<T> h), return the rank of the entry of h, O(lg(n))
+eg: root.rank(h)
+
+public Handle<T> successor(Handle<T> h), public Handle<T> predecessor(Handle<T> h),
+						   return the handle of the next/previous entry in order,
+						   null if not exists, O(lg(n))
+eg: root.successor(h)
+
+public void updateKey(Handle<T> h, T key), change the entry of h to key, h stays valid,
+						   O(lg(n)), if key still fits between the previous and the
+						   next entry the node is updated in place without
+						   restructuring, else it is deleted and inserted again
+eg: root.updateKey(h, key)
+
+other class methods(21):
 public boolean isEmpty(), judge whether this tree is empty, O(1)
 eg: root.isEmpty()
 
@@ -69,6 +93,22 @@ public ArrayList<T> getLeavesOfNode(T key), get all leaves rooted from the first
 					 encountered in inorder traverse order has the same value with key
 eg: root.getLeavesOfNode(key)
 					 
+public ArrayList<T> getAllEntries(), get all entries of this tree in inorder traverse order, O(n)
+eg: root.getAllEntries()
+					 
+public ArrayList<Handle<T>> rebuild(List<T> sorted), replace all entries of this tree with
+					 sorted, which must be in natural order, else throw
+					 IllegalArgumentException, the handles of the old entries become
+					 deleted, return the handles of the new entries in order, O(n)
+eg: root.rebuild(list)
+
+public ArrayList<Handle<T>> replace(List<Handle<T>> removed, List<T> sorted), delete the
+					 entries of removed and insert sorted, which must be in natural order,
+					 else throw IllegalArgumentException, in one pass that relinks the
+					 whole tree, the other handles stay valid, return the handles of the
+					 new entries in order, O(n + m)
+eg: root.replace(expired, arrived)
+					 
 public T previous(T key), get the prvious key of the first node 
 					 encountered in inorder traverse order has the same value with key, 
 					 if this key is not in the tree, throw NoSuchElementException
@@ -128,7 +168,11 @@ public class RBTree<T extends Comparable<T>>{
 	
 	private Node<T> root; //root of RBTree
 	
-	private class Node<T>{
+	public interface Handle<T>{
+		T getValue();
+	}
+	
+	private class Node<T> implements Handle<T>{
 		private T val;
 		private Node<T> left, right, parent;
 		private boolean color;
@@ -143,6 +187,14 @@ public class RBTree<T extends Comparable<T>>{
 			N = n;
 		}
 		
+		public T getValue(){
+			return val;
+		}
+		
+		private RBTree<?> tree(){
+			return RBTree.this;
+		}
+		
 		public Node<T> copyNode(){
 			Node<T> copy = new Node<T>(this.val);
 			copy.left = this.left;
@@ -157,12 +209,14 @@ public class RBTree<T extends Comparable<T>>{
 	
 	// insert node to red black tree
 	
-	public void insert(T key){
-		root = insert(root, key);
+	public Handle<T> insert(T key){
+		Node<T> z = new Node<T>(key, RED, 0);
+		root = insert(root, z);
+		return z;
 	}
 	
-	private Node<T> insert(Node<T> x, T key){
-		Node<T> z = new Node<T>(key, RED, 0);
+	// z is a red node with N 0 and no links
+	private Node<T> insert(Node<T> x, Node<T> z){
 		Node<T> y = null;
 		while(x!=null){
 			y = x;
@@ -236,12 +290,17 @@ public class RBTree<T extends Comparable<T>>{
 	// delete red black tree's node
 	
 	public void delete(T key){
-		root = deletePrivate(key);
-	}
-	
-	private Node<T> deletePrivate(T key){
 		Node<T> z = search(root, key);
 		if(z==null) throw new NoSuchElementException("not exist");
+		root = deletePrivate(z);
+	}
+	
+	public void delete(Handle<T> h){
+		root = deletePrivate(node(h));
+	}
+	
+	private Node<T> deletePrivate(Node<T> z){
+		Node<T> removed = z;
 		Node<T> y = z;
 		Node<T> x = null;
 		boolean yOriginalC = y.color;
@@ -322,6 +381,11 @@ public class RBTree<T extends Comparable<T>>{
 				x.parent.left = null;
 			else x.parent.right = null;
 		}
+		// mark the handle of the removed node as deleted
+		removed.left = null;
+		removed.right = null;
+		removed.parent = null;
+		removed.N = 0;
 		return root;
 	}
 	
@@ -621,6 +685,108 @@ public class RBTree<T extends Comparable<T>>{
 		return list;
 	}
 	
+	public ArrayList<T> getAllEntries(){
+		ArrayList<T> list = new ArrayList<T>();
+		getAllEntries(root, list);
+		return list;
+	}
+	
+	public ArrayList<Handle<T>> rebuild(List<T> sorted){
+		checkSorted(sorted);
+		clear(root);
+		ArrayList<Node<T>> nodes = new ArrayList<Node<T>>(sorted.size());
+		for(T key : sorted) nodes.add(new Node<T>(key));
+		root = link(nodes);
+		return new ArrayList<Handle<T>>(nodes);
+	}
+	
+	public ArrayList<Handle<T>> replace(List<Handle<T>> removed, List<T> sorted){
+		checkSorted(sorted);
+		ArrayList<Node<T>> gone = new ArrayList<Node<T>>(removed.size());
+		for(Handle<T> h : removed) gone.add(node(h));
+		ArrayList<Node<T>> kept = new ArrayList<Node<T>>(root==null ? 0 : root.N);
+		// mark the removed nodes, collect the others in order, then detach the removed ones
+		for(Node<T> x : gone) x.N = -1;
+		collect(root, kept);
+		for(Node<T> x : gone){
+			x.left = null;
+			x.right = null;
+			x.parent = null;
+			x.N = 0;
+		}
+		// merge the kept nodes with the new ones, a kept node goes before an equal new one
+		ArrayList<Node<T>> nodes = new ArrayList<Node<T>>(kept.size() + sorted.size());
+		ArrayList<Handle<T>> handles = new ArrayList<Handle<T>>(sorted.size());
+		int i = 0;
+		for(T key : sorted){
+			while(i<kept.size() && kept.get(i).val.compareTo(key)<=0) nodes.add(kept.get(i++));
+			Node<T> z = new Node<T>(key);
+			nodes.add(z);
+			handles.add(z);
+		}
+		while(i<kept.size()) nodes.add(kept.get(i++));
+		root = link(nodes);
+		return handles;
+	}
+	
+	private void checkSorted(List<T> sorted){
+		for(int i=1; i<sorted.size(); i++){
+			if(sorted.get(i - 1).compareTo(sorted.get(i))>0) throw new IllegalArgumentException("entries are not sorted");
+		}
+	}
+	
+	// mark the handles of the subtree rooted from x as deleted
+	private void clear(Node<T> x){
+		if(x==null) return;
+		clear(x.left);
+		clear(x.right);
+		x.left = null;
+		x.right = null;
+		x.parent = null;
+		x.N = 0;
+	}
+	
+	// the nodes of the subtree rooted from x in inorder, except the ones marked removed
+	private void collect(Node<T> x, ArrayList<Node<T>> list){
+		if(x==null) return;
+		collect(x.left, list);
+		if(x.N!=-1) list.add(x);
+		collect(x.right, list);
+	}
+	
+	// link the ordered nodes into a balanced tree and return its root
+	private Node<T> link(ArrayList<Node<T>> nodes){
+		// nodes on the deepest level are red, all others black, so every path has the same black height
+		int depth = 0;
+		while((2 << depth) - 1<nodes.size()) depth++;
+		Node<T> x = link(nodes, 0, nodes.size(), 0, depth);
+		if(x!=null){
+			x.color = BLACK;
+			x.parent = null;
+		}
+		return x;
+	}
+	
+	private Node<T> link(ArrayList<Node<T>> nodes, int lo, int hi, int d, int depth){
+		if(lo>=hi) return null;
+		int mid = (lo + hi) >>> 1;
+		Node<T> x = nodes.get(mid);
+		x.color = d==depth ? RED : BLACK;
+		x.N = hi - lo;
+		x.left = link(nodes, lo, mid, d + 1, depth);
+		if(x.left!=null) x.left.parent = x;
+		x.right = link(nodes, mid + 1, hi, d + 1, depth);
+		if(x.right!=null) x.right.parent = x;
+		return x;
+	}
+	
+	private void getAllEntries(Node<T> x, ArrayList<T> list){
+		if(x==null) return;
+		getAllEntries(x.left, list);
+		list.add(x.val);
+		getAllEntries(x.right, list);
+	}
+	
 	private ArrayList<Node<T>> getNodeLeaves(Node<T> x){
 		ArrayList<Node<T>> list = new ArrayList<Node<T>>();
 		if(x==null) return list;
@@ -721,6 +887,43 @@ public class RBTree<T extends Comparable<T>>{
 		else return getKthEntry(x.right, k-tmp);
 	}
 	
+	// handle operations
+	
+	@SuppressWarnings("unchecked")
+	private Node<T> node(Handle<T> h){
+		if(!(h instanceof RBTree.Node)) throw new NoSuchElementException("the entry is not in this tree");
+		Node<T> x = (Node<T>) h;
+		if(x.N==0 || x.tree()!=this) throw new NoSuchElementException("the entry is not in this tree");
+		return x;
+	}
+	
+	public int rank(Handle<T> h){
+		return getRankOfEntry(root, node(h));
+	}
+	
+	public Handle<T> successor(Handle<T> h){
+		return next(node(h));
+	}
+	
+	public Handle<T> predecessor(Handle<T> h){
+		return previous(node(h));
+	}
+	
+	public void updateKey(Handle<T> h, T key){
+		Node<T> x = node(h);
+		Node<T> p = previous(x);
+		Node<T> s = next(x);
+		if((p==null || p.val.compareTo(key)<=0) && (s==null || key.compareTo(s.val)<=0)){
+			x.val = key;
+			return;
+		}
+		// reuse the node so the handle stays valid
+		root = deletePrivate(x);
+		x.val = key;
+		x.color = RED;
+		root = insert(root, x);
+	}
+	
 	public int size(){
 		return root.N;
 	}
@@ -799,6 +1002,29 @@ public class RBTree<T extends Comparable<T>>{
 		//root.inorderT();
 		root.check();
 		
+		// leaderboard: change the score of an entry, through its handle and by delete then insert
+		int updatenum = 200000;
+		ArrayList<Handle<Integer>> handles = new ArrayList<Handle<Integer>>();
+		for(int i=0; i<updatenum; i++) handles.add(root.insert(rnd.nextInt(10000)));
+		System.out.println("updating keys through handles:");
+		starttime = System.currentTimeMillis();
+		for(int i=0; i<updatenum; i++){
+			Handle<Integer> h = handles.get(i);
+			root.updateKey(h, h.getValue() + rnd.nextInt(3));
+		}
+		finishtime = System.currentTimeMillis();
+		System.out.println("elapsed time: " + (finishtime - starttime) + "ms");
+		System.out.println("updating keys by delete and insert:");
+		starttime = System.currentTimeMillis();
+		for(int i=0; i<updatenum; i++){
+			int key = handles.get(i).getValue();
+			root.delete(key);
+			root.insert(key + rnd.nextInt(3));
+		}
+		finishtime = System.currentTimeMillis();
+		System.out.println("elapsed time: " + (finishtime - starttime) + "ms");
+		root.check();
+		
 		//**************************************************************/
 		
 		/*RBTree<Character> root = new RBTree<Character>();
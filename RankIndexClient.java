@@ -0,0 +1,185 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Rank Index Client: blocking client of RankIndexServer, one request in flight per connection,
+not thread safe, use one client per thread. main is a load generator reporting throughput and
+latency percentiles
+
+Usage:
+
+public RankIndexClient(String host, int port)
+public void insert(String name, int key)
+public void delete(String name, int key), throw NoSuchElementException if key is not in the tree
+public boolean contains(String name, int key)
+public int getKthEntry(String name, int k), throw NoSuchElementException if k is out of range
+public int getRankOfEntry(String name, int key), throw NoSuchElementException if key is not in the tree
+public int size(String name)
+public void close()
+eg: RankIndexClient client = new RankIndexClient("127.0.0.1", 7070); client.insert("scores", 42);
+
+to run the load generator, without a port it starts a server in this process:
+javac RankIndexClient.java RankIndexServer.java RBTree.java
+java RankIndexClient [connections] [seconds] [write percent] [port]
+
+***************************************************************************************************/
+
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.NoSuchElementException;
+
+public class RankIndexClient implements Closeable{
+	private final Socket socket;
+	private final DataInputStream in;
+	private final DataOutputStream out;
+	private int value;	// value of the last response
+
+	public RankIndexClient(String host, int port) throws IOException{
+		socket = new Socket(host, port);
+		socket.setTcpNoDelay(true);
+		in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+		out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+	}
+
+	private byte call(byte op, String name, int key) throws IOException{
+		out.writeByte(op);
+		out.writeUTF(name);
+		out.writeInt(key);
+		out.flush();
+		byte status = in.readByte();
+		value = in.readInt();
+		if(status==RankIndexServer.ERROR) throw new IOException("server error");
+		return status;
+	}
+
+	public void insert(String name, int key) throws IOException{
+		call(RankIndexServer.INSERT, name, key);
+	}
+
+	public void delete(String name, int key) throws IOException{
+		if(call(RankIndexServer.DELETE, name, key)==RankIndexServer.NOT_FOUND) throw new NoSuchElementException("not exist");
+	}
+
+	public boolean contains(String name, int key) throws IOException{
+		call(RankIndexServer.CONTAINS, name, key);
+		return value==1;
+	}
+
+	public int getKthEntry(String name, int k) throws IOException{
+		if(call(RankIndexServer.KTH, name, k)==RankIndexServer.NOT_FOUND) throw new NoSuchElementException("k exists size of tree");
+		return value;
+	}
+
+	public int getRankOfEntry(String name, int key) throws IOException{
+		if(call(RankIndexServer.RANK, name, key)==RankIndexServer.NOT_FOUND) throw new NoSuchElementException("the entry is not in this tree");
+		return value;
+	}
+
+	public int size(String name) throws IOException{
+		call(RankIndexServer.SIZE, name, 0);
+		return value;
+	}
+
+	public void close() throws IOException{
+		socket.close();
+	}
+
+	public static void main(String[] args) throws Exception{
+		int connections = args.length>0 ? Integer.parseInt(args[0]) : 16;
+		final int seconds = args.length>1 ? Integer.parseInt(args[1]) : 10;
+		final int writePercent = args.length>2 ? Integer.parseInt(args[2]) : 20;
+		RankIndexServer server = null;
+		int port;
+		if(args.length>3) port = Integer.parseInt(args[3]);
+		else{
+			server = new RankIndexServer(0);
+			server.start();
+			port = server.getPort();
+		}
+		final String name = "bench";
+		final int keyRange = 1 << 20;
+
+		RankIndexClient loader = new RankIndexClient("127.0.0.1", port);
+		Random rnd = new Random();
+		for(int i=0; i<100000; i++) loader.insert(name, rnd.nextInt(keyRange));
+		loader.close();
+		System.out.println("connections: " + connections + ", write percent: " + writePercent
+			+ ", seconds: " + seconds + ", virtual threads: " + RankIndexServer.hasVirtualThreads());
+
+		final int finalPort = port;
+		final long[][] latencies = new long[connections][];
+		final int[] counts = new int[connections];
+		final long deadline = System.nanoTime() + seconds * 1000000000L;
+		Thread[] workers = new Thread[connections];
+		for(int t=0; t<connections; t++){
+			final int id = t;
+			workers[t] = new Thread(){
+				public void run(){
+					long[] lat = new long[1 << 20];
+					int n = 0;
+					Random rnd = new Random(id);
+					ArrayList<Integer> inserted = new ArrayList<Integer>();
+					try(RankIndexClient client = new RankIndexClient("127.0.0.1", finalPort)){
+						while(System.nanoTime()<deadline){
+							long starttime = System.nanoTime();
+							int r = rnd.nextInt(100);
+							if(r<writePercent){
+								// keep the tree size steady, delete what this connection inserted
+								if(inserted.isEmpty() || rnd.nextBoolean()){
+									int key = rnd.nextInt(keyRange);
+									client.insert(name, key);
+									inserted.add(key);
+								}
+								else client.delete(name, inserted.remove(inserted.size() - 1));
+							}
+							else if(r<writePercent + (100 - writePercent) / 2){
+								client.getKthEntry(name, rnd.nextInt(100000) + 1);
+							}
+							else{
+								try{
+									client.getRankOfEntry(name, rnd.nextInt(keyRange));
+								}
+								catch(NoSuchElementException e){
+									// most random keys are not in the tree
+								}
+							}
+							if(n==lat.length) lat = Arrays.copyOf(lat, n * 2);
+							lat[n++] = System.nanoTime() - starttime;
+						}
+					}
+					catch(IOException e){
+						System.out.println("connection " + id + " failed: " + e);
+					}
+					latencies[id] = lat;
+					counts[id] = n;
+				}
+			};
+		}
+		long starttime = System.nanoTime();
+		for(Thread w : workers) w.start();
+		for(Thread w : workers) w.join();
+		double elapsed = (System.nanoTime() - starttime) / 1e9;
+
+		int total = 0;
+		for(int c : counts) total += c;
+		long[] all = new long[total];
+		int index = 0;
+		for(int t=0; t<connections; t++){
+			System.arraycopy(latencies[t], 0, all, index, counts[t]);
+			index += counts[t];
+		}
+		Arrays.sort(all);
+		System.out.println(total + " requests, " + (long) (total / elapsed) + " requests/s");
+		if(total>0){
+			System.out.println("latency p50: " + all[total / 2] / 1000 + "us, p99: " + all[(int) (total * 0.99)] / 1000
+				+ "us, p99.9: " + all[(int) (total * 0.999)] / 1000 + "us, max: " + all[total - 1] / 1000 + "us");
+		}
+		if(server!=null){
+			System.out.println("average write batch: " + String.format("%.2f", server.getAverageBatchSize()));
+			server.close();
+		}
+	}
+}
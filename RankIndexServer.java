@@ -0,0 +1,308 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Rank Index Server: host named RBTree<Integer> instances for several processes over a binary
+protocol on a loopback socket, so services share one index instead of each building its own
+
+Each client connection is served by its own thread, a virtual thread when the JVM provides them
+(Java 21 or later), else a pooled platform thread. Reads run on the connection's thread under the
+read lock of the index. Writes are queued to a single writer thread, which drains every queued
+write, applies the whole batch under one write lock, then answers them, so concurrent writers pay
+for one lock acquisition per batch and readers always see the index between two batches.
+
+Protocol, all integers are big endian, a client may pipeline requests:
+request:  byte op, tree name (DataOutput.writeUTF), int key
+response: byte status, int value
+op INSERT(1) insert key, a tree is created by its first insert
+op DELETE(2) delete key, NOT_FOUND if the key is not in the tree
+op CONTAINS(3) value is 1 if the tree contains key, else 0
+op KTH(4) value is the kth smallest entry, key is k, NOT_FOUND if k is out of range
+op RANK(5) value is the rank of key, NOT_FOUND if the key is not in the tree
+op SIZE(6) value is the size of the tree, key is ignored
+status OK(0), NOT_FOUND(1), ERROR(2)
+
+Usage:
+
+public RankIndexServer(int port), bind to 127.0.0.1, port 0 picks a free port
+public void start(), start accepting clients
+public int getPort()
+public double getAverageBatchSize(), average number of writes applied per batch
+public void close(), stop accepting, close the clients, stop the writer once the queued writes
+                     are applied, and wait for the connection threads to finish
+eg: RankIndexServer server = new RankIndexServer(7070); server.start();
+
+to run the server:
+javac RankIndexServer.java RBTree.java
+java RankIndexServer [port]
+
+***************************************************************************************************/
+
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.NoSuchElementException;
+import java.util.concurrent.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+public class RankIndexServer{
+	public static final byte INSERT = 1;
+	public static final byte DELETE = 2;
+	public static final byte CONTAINS = 3;
+	public static final byte KTH = 4;
+	public static final byte RANK = 5;
+	public static final byte SIZE = 6;
+
+	public static final byte OK = 0;
+	public static final byte NOT_FOUND = 1;
+	public static final byte ERROR = 2;
+
+	private static final int DEFAULT_PORT = 7070;
+	private static final int MAX_BATCH = 4096;
+	private static final long CLOSE_TIMEOUT_SECONDS = 10;
+
+	private final ServerSocket server;
+	private final ExecutorService handlers = newHandlerExecutor();
+	private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+	private final Map<String, RBTree<Integer>> trees = new ConcurrentHashMap<String, RBTree<Integer>>();
+	private final ReentrantReadWriteLock view = new ReentrantReadWriteLock();
+	private final BlockingQueue<Write> writes = new LinkedBlockingQueue<Write>();
+	private final Thread writer = new Thread(this::writeLoop, "rank-index-writer");
+	private final Thread acceptor = new Thread(this::acceptLoop, "rank-index-acceptor");
+	private volatile boolean running = true;	// cleared under the writes lock
+	private volatile long batches, batchedWrites;
+
+	// a queued insert or delete, answered by the writer thread
+	private static final class Write{
+		private final byte op;
+		private final String name;
+		private final int key;
+		private final CompletableFuture<Byte> status = new CompletableFuture<Byte>();
+		public Write(byte op, String name, int key){
+			this.op = op;
+			this.name = name;
+			this.key = key;
+		}
+	}
+
+	public RankIndexServer(int port) throws IOException{
+		server = new ServerSocket(port, 128, InetAddress.getLoopbackAddress());
+	}
+
+	// virtual threads when the JVM has them, looked up reflectively to still run on older JVMs
+	private static ExecutorService newHandlerExecutor(){
+		try{
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		}
+		catch(ReflectiveOperationException e){
+			return Executors.newCachedThreadPool();
+		}
+	}
+
+	public static boolean hasVirtualThreads(){
+		try{
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return true;
+		}
+		catch(NoSuchMethodException e){
+			return false;
+		}
+	}
+
+	public void start(){
+		writer.start();
+		acceptor.start();
+	}
+
+	public int getPort(){
+		return server.getLocalPort();
+	}
+
+	public double getAverageBatchSize(){
+		long b = batches;
+		return b==0 ? 0 : (double) batchedWrites / b;
+	}
+
+	public void close() throws IOException, InterruptedException{
+		// no write is queued after this, so the writer sees every queued write before it stops
+		synchronized(writes){
+			running = false;
+		}
+		server.close();
+		for(Socket s : clients) s.close();
+		handlers.shutdown();
+		acceptor.join();
+		writer.join();
+		handlers.awaitTermination(CLOSE_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+	}
+
+	private void acceptLoop(){
+		while(running){
+			try{
+				final Socket s = server.accept();
+				s.setTcpNoDelay(true);
+				clients.add(s);
+				// accepted while close() was closing the clients
+				if(!running){
+					s.close();
+					break;
+				}
+				handlers.execute(() -> serve(s));
+			}
+			catch(IOException e){
+				// the server socket was closed
+			}
+			catch(RejectedExecutionException e){
+				// shutting down
+			}
+		}
+	}
+
+	private void serve(Socket s){
+		try(Socket socket = s){
+			DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+			while(true){
+				byte op;
+				try{
+					op = in.readByte();
+				}
+				catch(EOFException e){
+					break;
+				}
+				String name = in.readUTF();
+				int key = in.readInt();
+				int value = 0;
+				byte status;
+				if(op==INSERT || op==DELETE){
+					status = write(op, name, key);
+				}
+				else{
+					int[] result = new int[1];
+					status = read(op, name, key, result);
+					value = result[0];
+				}
+				out.writeByte(status);
+				out.writeInt(value);
+				// answer a batch of pipelined requests with one flush
+				if(in.available()==0) out.flush();
+			}
+		}
+		catch(IOException e){
+			// the client went away or the server is closing
+		}
+		finally{
+			clients.remove(s);
+		}
+	}
+
+	private byte write(byte op, String name, int key){
+		Write w = new Write(op, name, key);
+		synchronized(writes){
+			if(!running) return ERROR;
+			writes.add(w);
+		}
+		try{
+			return w.status.get();
+		}
+		catch(InterruptedException e){
+			Thread.currentThread().interrupt();
+			return ERROR;
+		}
+		catch(ExecutionException e){
+			return ERROR;
+		}
+	}
+
+	private byte read(byte op, String name, int key, int[] result){
+		view.readLock().lock();
+		try{
+			RBTree<Integer> tree = trees.get(name);
+			switch(op){
+			case CONTAINS:
+				result[0] = tree!=null && !tree.isEmpty() && tree.contains(key) ? 1 : 0;
+				return OK;
+			case KTH:
+				if(tree==null) return NOT_FOUND;
+				result[0] = tree.getKthEntry(key);
+				return OK;
+			case RANK:
+				if(tree==null) return NOT_FOUND;
+				result[0] = tree.getRankOfEntry(key);
+				return OK;
+			case SIZE:
+				result[0] = tree==null || tree.isEmpty() ? 0 : tree.size();
+				return OK;
+			default:
+				return ERROR;
+			}
+		}
+		catch(NoSuchElementException e){
+			return NOT_FOUND;
+		}
+		finally{
+			view.readLock().unlock();
+		}
+	}
+
+	private void writeLoop(){
+		ArrayList<Write> batch = new ArrayList<Write>();
+		byte[] status = new byte[MAX_BATCH];
+		while(running || !writes.isEmpty()){
+			try{
+				Write first = writes.poll(100, TimeUnit.MILLISECONDS);
+				if(first==null) continue;
+				batch.add(first);
+			}
+			catch(InterruptedException e){
+				continue;
+			}
+			writes.drainTo(batch, MAX_BATCH - 1);
+			view.writeLock().lock();
+			try{
+				for(int i=0; i<batch.size(); i++) status[i] = apply(batch.get(i));
+			}
+			finally{
+				view.writeLock().unlock();
+			}
+			for(int i=0; i<batch.size(); i++) batch.get(i).status.complete(status[i]);
+			batches++;
+			batchedWrites += batch.size();
+			batch.clear();
+		}
+		// nothing is queued once running is cleared, answer whatever is left all the same
+		for(Write w=writes.poll(); w!=null; w=writes.poll()) w.status.complete(ERROR);
+	}
+
+	private byte apply(Write w){
+		if(w.op==INSERT){
+			RBTree<Integer> tree = trees.get(w.name);
+			if(tree==null){
+				tree = new RBTree<Integer>();
+				trees.put(w.name, tree);
+			}
+			tree.insert(w.key);
+			return OK;
+		}
+		RBTree<Integer> tree = trees.get(w.name);
+		if(tree==null) return NOT_FOUND;
+		try{
+			tree.delete(w.key);
+			return OK;
+		}
+		catch(NoSuchElementException e){
+			return NOT_FOUND;
+		}
+	}
+
+	public static void main(String[] args) throws IOException{
+		int port = DEFAULT_PORT;
+		if(args.length>0) port = Integer.parseInt(args[0]);
+		RankIndexServer server = new RankIndexServer(port);
+		server.start();
+		System.out.println("rank index server listening on 127.0.0.1:" + server.getPort()
+			+ ", virtual threads: " + hasVirtualThreads());
+	}
+}
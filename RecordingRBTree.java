@@ -0,0 +1,385 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Recording RBTree: an RBTree that logs every order statistic operation (op type, key, time) to a
+compact binary trace, to be replayed by TraceReplay. Recording is opt in, construct this class
+where an RBTree is constructed, a plain RBTree pays nothing
+
+Like RBTree this class is not thread safe, concurrent callers must guard it with one external
+lock, the records then follow the order the callers took it in. Records are appended to an
+in-memory buffer and written out in 64KB blocks. Keys are stored through a KeyCodec as zigzag
+varints, so a small int key takes 1 to 3 bytes, and the time as the varint delta in nanoseconds
+from the previous record.
+
+Trace format:
+header:  int magic 0x52425452 ("RBTR"), byte version 1
+record:  byte op, varint thread ordinal (0 for the first thread seen, 1 for the next ...),
+         varint nanoseconds since the previous record, then by op
+         INSERT(1) DELETE(2) CONTAINS(3) RANK(5) NEXT(6) PREVIOUS(7) HAS_NEXT(8)
+         HAS_PREVIOUS(9): zigzag varint key
+         KTH(4): zigzag varint k
+         MIN(10) MAX(11) SIZE(12) IS_EMPTY(13): nothing
+The handle operations are recorded as the key operation on the handle's entry, delete(h) as
+DELETE, rank(h) as RANK, successor(h) as NEXT, predecessor(h) as PREVIOUS, updateKey(h, key) as
+DELETE of the old key then INSERT of the new one. Every operation is recorded when it returns, so
+the time between two records is the time between two returns. A key operation is recorded even
+when it throws, eg a delete of a missing key, so the replay sees the same miss, a handle
+operation only when it succeeds, so a call with a deleted or foreign handle leaves no record. The debugging utilities (inorderT,
+check, getLeaves ...) are not recorded. rebuild() and replace() throw
+UnsupportedOperationException, the trace has no record for relinking the whole tree at once.
+
+Usage:
+
+public RecordingRBTree(OutputStream out, KeyCodec<T> codec), the header is written at once
+eg: RBTree<Integer> tree = new RecordingRBTree<Integer>(new FileOutputStream("rank.trace"),
+        RecordingRBTree.INTEGER)
+public void flush(), write the buffered records
+public void close(), flush and close the stream
+public long getRecordCount()
+public static KeyCodec<Integer> INTEGER, public static KeyCodec<Long> LONG
+
+to record a sample trace of a mixed workload:
+javac RecordingRBTree.java RBTree.java
+java RecordingRBTree rank.trace
+
+***************************************************************************************************/
+
+
+import java.io.*;
+import java.util.*;
+
+public class RecordingRBTree<T extends Comparable<T>> extends RBTree<T>{
+	public static final int MAGIC = 0x52425452;
+	public static final byte VERSION = 1;
+
+	public static final byte INSERT = 1;
+	public static final byte DELETE = 2;
+	public static final byte CONTAINS = 3;
+	public static final byte KTH = 4;
+	public static final byte RANK = 5;
+	public static final byte NEXT = 6;
+	public static final byte PREVIOUS = 7;
+	public static final byte HAS_NEXT = 8;
+	public static final byte HAS_PREVIOUS = 9;
+	public static final byte MIN = 10;
+	public static final byte MAX = 11;
+	public static final byte SIZE = 12;
+	public static final byte IS_EMPTY = 13;
+
+	// map a key to a long and back, the trace stores the long
+	public interface KeyCodec<T>{
+		long encode(T key);
+		T decode(long v);
+	}
+
+	public static final KeyCodec<Integer> INTEGER = new KeyCodec<Integer>(){
+		public long encode(Integer key){ return key; }
+		public Integer decode(long v){ return (int) v; }
+	};
+
+	public static final KeyCodec<Long> LONG = new KeyCodec<Long>(){
+		public long encode(Long key){ return key; }
+		public Long decode(long v){ return v; }
+	};
+
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	private final OutputStream out;
+	private final KeyCodec<T> codec;
+	private final byte[] buf = new byte[BUFFER_SIZE];
+	private int pos;
+	private long last = System.nanoTime();
+	private long records;
+	// held by each thread itself, so a finished thread is not kept alive by the recorder
+	private final ThreadLocal<Integer> ordinal = new ThreadLocal<Integer>();
+	private int threadCount;
+
+	public RecordingRBTree(OutputStream out, KeyCodec<T> codec) throws IOException{
+		this.out = out;
+		this.codec = codec;
+		DataOutputStream header = new DataOutputStream(out);
+		header.writeInt(MAGIC);
+		header.writeByte(VERSION);
+		header.flush();
+	}
+
+	public synchronized void flush() throws IOException{
+		out.write(buf, 0, pos);
+		pos = 0;
+		out.flush();
+	}
+
+	public synchronized void close() throws IOException{
+		flush();
+		out.close();
+	}
+
+	public synchronized long getRecordCount(){
+		return records;
+	}
+
+	// append one record
+
+	private synchronized void record(byte op){
+		// a record is at most 1 + 5 + 10 + 10 bytes
+		if(pos>BUFFER_SIZE - 32){
+			try{
+				out.write(buf, 0, pos);
+			}
+			catch(IOException e){
+				throw new UncheckedIOException(e);
+			}
+			pos = 0;
+		}
+		Integer thread = ordinal.get();
+		if(thread==null){
+			thread = threadCount++;
+			ordinal.set(thread);
+		}
+		long now = System.nanoTime();
+		buf[pos++] = op;
+		writeVarLong(thread);
+		writeVarLong(Math.max(now - last, 0));
+		last = now;
+		records++;
+	}
+
+	private synchronized void record(byte op, long v){
+		record(op);
+		writeVarLong((v << 1) ^ (v >> 63));
+	}
+
+	private void record(byte op, T key){
+		record(op, codec.encode(key));
+	}
+
+	private void writeVarLong(long v){
+		while((v & ~0x7FL)!=0){
+			buf[pos++] = (byte) ((v & 0x7F) | 0x80);
+			v >>>= 7;
+		}
+		buf[pos++] = (byte) v;
+	}
+
+	// recorded operations
+
+	@Override
+	public Handle<T> insert(T key){
+		try{
+			return super.insert(key);
+		}
+		finally{
+			record(INSERT, key);
+		}
+	}
+
+	@Override
+	public void delete(T key){
+		try{
+			super.delete(key);
+		}
+		finally{
+			record(DELETE, key);
+		}
+	}
+
+	@Override
+	public void delete(Handle<T> h){
+		T key = h.getValue();
+		super.delete(h);
+		record(DELETE, key);
+	}
+
+	@Override
+	public boolean contains(T key){
+		try{
+			return super.contains(key);
+		}
+		finally{
+			record(CONTAINS, key);
+		}
+	}
+
+	@Override
+	public T getKthEntry(int k){
+		try{
+			return super.getKthEntry(k);
+		}
+		finally{
+			record(KTH, k);
+		}
+	}
+
+	@Override
+	public int getRankOfEntry(T key){
+		try{
+			return super.getRankOfEntry(key);
+		}
+		finally{
+			record(RANK, key);
+		}
+	}
+
+	@Override
+	public int rank(Handle<T> h){
+		int rank = super.rank(h);
+		record(RANK, h.getValue());
+		return rank;
+	}
+
+	@Override
+	public T next(T key){
+		try{
+			return super.next(key);
+		}
+		finally{
+			record(NEXT, key);
+		}
+	}
+
+	@Override
+	public Handle<T> successor(Handle<T> h){
+		Handle<T> y = super.successor(h);
+		record(NEXT, h.getValue());
+		return y;
+	}
+
+	@Override
+	public T previous(T key){
+		try{
+			return super.previous(key);
+		}
+		finally{
+			record(PREVIOUS, key);
+		}
+	}
+
+	@Override
+	public Handle<T> predecessor(Handle<T> h){
+		Handle<T> y = super.predecessor(h);
+		record(PREVIOUS, h.getValue());
+		return y;
+	}
+
+	@Override
+	public boolean hasNext(T key){
+		try{
+			return super.hasNext(key);
+		}
+		finally{
+			record(HAS_NEXT, key);
+		}
+	}
+
+	@Override
+	public boolean hasPrevious(T key){
+		try{
+			return super.hasPrevious(key);
+		}
+		finally{
+			record(HAS_PREVIOUS, key);
+		}
+	}
+
+	@Override
+	public void updateKey(Handle<T> h, T key){
+		T old = h.getValue();
+		super.updateKey(h, key);
+		record(DELETE, old);
+		record(INSERT, key);
+	}
+
+	@Override
+	public ArrayList<Handle<T>> rebuild(List<T> sorted){
+		throw new UnsupportedOperationException("rebuild is not recorded");
+	}
+
+	@Override
+	public ArrayList<Handle<T>> replace(List<Handle<T>> removed, List<T> sorted){
+		throw new UnsupportedOperationException("replace is not recorded");
+	}
+
+	@Override
+	public T min(){
+		try{
+			return super.min();
+		}
+		finally{
+			record(MIN);
+		}
+	}
+
+	@Override
+	public T max(){
+		try{
+			return super.max();
+		}
+		finally{
+			record(MAX);
+		}
+	}
+
+	@Override
+	public int size(){
+		try{
+			return super.size();
+		}
+		finally{
+			record(SIZE);
+		}
+	}
+
+	@Override
+	public boolean isEmpty(){
+		try{
+			return super.isEmpty();
+		}
+		finally{
+			record(IS_EMPTY);
+		}
+	}
+
+	public static void main(String[] args){
+		String file = args.length>0 ? args[0] : "rank.trace";
+		int num = args.length>1 ? Integer.parseInt(args[1]) : 1000000;
+		try{
+			recordSample(file, num);
+		}
+		catch(IOException e){
+			System.out.println("failed to write " + file + ": " + e);
+		}
+	}
+
+	// a skewed mixed workload: inserts and deletes of hot keys, rank and kth queries
+	private static void recordSample(String file, int num) throws IOException{
+		RecordingRBTree<Integer> root = new RecordingRBTree<Integer>(
+			new FileOutputStream(file), RecordingRBTree.INTEGER);
+		Random rnd = new Random(1);
+		ArrayList<Integer> live = new ArrayList<Integer>();
+		long starttime = System.currentTimeMillis();
+		for(int i=0; i<num; i++){
+			int r = rnd.nextInt(100);
+			if(r<30 || live.isEmpty()){
+				int key = (int) (10000 * Math.pow(rnd.nextDouble(), 3));
+				root.insert(key);
+				live.add(key);
+			}
+			else if(r<45){
+				int index = rnd.nextInt(live.size());
+				root.delete(live.get(index));
+				live.set(index, live.get(live.size() - 1));
+				live.remove(live.size() - 1);
+			}
+			else if(r<70) root.getRankOfEntry(live.get(rnd.nextInt(live.size())));
+			else if(r<90) root.getKthEntry(rnd.nextInt(live.size()) + 1);
+			else if(r<97) root.contains(rnd.nextInt(10000));
+			else root.max();
+		}
+		root.close();
+		long elapsetime = System.currentTimeMillis() - starttime;
+		System.out.println(root.getRecordCount() + " records to " + file + ", "
+			+ new File(file).length() + " bytes, elapsed time: " + elapsetime + "ms");
+	}
+}
@@ -0,0 +1,631 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Java API: Key range sharded RBTree, the key space is partitioned into ranges, each range is kept
+in an independent RBTree shard guarded by its own lock, so writes to different key ranges do not
+contend, allow duplicates, thread safe
+
+A shard covers the keys from its low key (inclusive) to the low key of the next shard (exclusive),
+all duplicates of a key live in the same shard. A shard is split at its median when it grows over
+maxShardSize, and merged with its smaller neighbor when it shrinks under a quarter of it, the new
+shards are built from the sorted entries in O(n) while the old ones stay locked. The ranges of a
+live shard never change, a split or merge publishes new shards and retires the old ones, a
+writer that locked a retired shard simply looks up the shard again.
+
+Global rank queries read the shard sizes without locking, lock only the shard the answer is in,
+then check the version of each shard they counted, a write bumps the version of its shard, and
+retry if one changed or a shard was split or merged meanwhile. So they cost O(S + lg(n)) where S
+is the number of shards, S stays small since shards are kept between maxShardSize/4 and
+maxShardSize entries, except next to a heavily duplicated key. After 4 failed tries a query locks
+every shard in key order, which stalls every writer until it is done, previous() and next() do
+the same when the answer is in another shard.
+
+Usage:
+
+constructor(2):
+public ShardedRBTree(), shards of at most 65536 entries
+public ShardedRBTree(int maxShardSize)
+eg: ShardedRBTree<T> tree = new ShardedRBTree<T>()
+
+manipulate class method(2):
+public void insert(T key), O(lg(n)), plus an amortized split
+public void delete(T key), delete key if exists, else throw NoSuchElementException
+                           O(lg(n)), plus an amortized merge
+
+other class methods(12):
+public boolean contains(T key), O(lg(n))
+public int getRankOfEntry(T key), the same as RBTree, O(S + lg(n))
+public T getKthEntry(int k), return the kth smallest value, O(S + lg(n))
+public T previous(T key), public boolean hasPrevious(T key),
+public T next(T key), public boolean hasNext(T key), the same as RBTree, O(S + lg(n))
+public T min(), public T max(), O(S + lg(n))
+public int size(), public boolean isEmpty(), O(S), no lock unless it has to retry
+public int getShardCount(), number of shards, O(1)
+public void check(), check each shard's entries fall in its range and its size is compatible
+
+to benchmark write contention against a single RBTree behind one lock:
+javac ShardedRBTree.java RBTree.java
+java ShardedRBTree [max threads]
+
+***************************************************************************************************/
+
+
+import java.util.*;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+public class ShardedRBTree<T extends Comparable<T>>{
+	private static final int DEFAULT_MAX_SHARD_SIZE = 1 << 16;
+	private static final int OPTIMISTIC_TRIES = 4;
+
+	private final int maxShardSize;
+	private final int minShardSize;
+	private volatile Shard<T>[] shards;	// ordered by key range
+	private final ReentrantLock resizeLock = new ReentrantLock();	// serialize splits and merges
+
+	private static final class Shard<T extends Comparable<T>>{
+		private final T low;	// smallest key of this range, null for the first shard
+		private final RBTree<T> tree;
+		private final ReentrantLock lock = new ReentrantLock();
+		// written under lock, read without it by the optimistic queries
+		private volatile int size;
+		private volatile long version;	// bumped after each write
+		// guarded by lock
+		private int splitSize;	// split when size exceeds it
+		private boolean retired;	// replaced by a split or merge
+		public Shard(T low, RBTree<T> tree, int size, int splitSize){
+			this.low = low;
+			this.tree = tree;
+			this.size = size;
+			this.splitSize = splitSize;
+		}
+	}
+
+	public ShardedRBTree(){
+		this(DEFAULT_MAX_SHARD_SIZE);
+	}
+
+	public ShardedRBTree(int maxShardSize){
+		if(maxShardSize<4) throw new IllegalArgumentException("maxShardSize must be at least 4");
+		this.maxShardSize = maxShardSize;
+		this.minShardSize = maxShardSize / 4;
+		Shard<T>[] s = newArray(1);
+		s[0] = new Shard<T>(null, new RBTree<T>(), 0, maxShardSize);
+		shards = s;
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	private static <T extends Comparable<T>> Shard<T>[] newArray(int n){
+		return (Shard<T>[]) new Shard[n];
+	}
+
+	// index of the shard whose range contains key
+	private int find(Shard<T>[] s, T key){
+		int lo = 1, hi = s.length;
+		while(lo<hi){
+			int mid = (lo + hi) >>> 1;
+			if(s[mid].low.compareTo(key)<=0) lo = mid + 1;
+			else hi = mid;
+		}
+		return lo - 1;
+	}
+
+	private Shard<T> lockShard(T key){
+		while(true){
+			Shard<T>[] s = shards;
+			Shard<T> shard = s[find(s, key)];
+			shard.lock.lock();
+			if(!shard.retired) return shard;
+			shard.lock.unlock();
+		}
+	}
+
+	// lock every shard in key order, return the locked shards
+	private Shard<T>[] lockAll(){
+		while(true){
+			Shard<T>[] s = shards;
+			int i = 0;
+			while(i<s.length){
+				s[i].lock.lock();
+				if(s[i].retired) break;
+				i++;
+			}
+			if(i==s.length) return s;
+			for(int j=i; j>=0; j--) s[j].lock.unlock();
+		}
+	}
+
+	private void unlockAll(Shard<T>[] s){
+		for(int i=s.length - 1; i>=0; i--) s[i].lock.unlock();
+	}
+
+	// versions of the first n shards, read before their sizes
+	private long[] versions(Shard<T>[] s, int n){
+		long[] v = new long[n];
+		for(int i=0; i<n; i++) v[i] = s[i].version;
+		return v;
+	}
+
+	// true if the first v.length shards did not change and no shard was split or merged since
+	// their versions were read
+	private boolean unchanged(Shard<T>[] s, long[] v){
+		if(shards!=s) return false;
+		for(int i=0; i<v.length; i++){
+			if(s[i].version!=v[i]) return false;
+		}
+		return true;
+	}
+
+	// insert and delete
+
+	public void insert(T key){
+		Shard<T> shard = lockShard(key);
+		boolean split;
+		try{
+			shard.tree.insert(key);
+			shard.size++;
+			shard.version++;
+			split = shard.size>shard.splitSize;
+		}
+		finally{
+			shard.lock.unlock();
+		}
+		if(split) split(shard);
+	}
+
+	public void delete(T key){
+		Shard<T> shard = lockShard(key);
+		boolean merge;
+		try{
+			shard.tree.delete(key);
+			shard.size--;
+			shard.version++;
+			merge = shard.size<minShardSize;
+		}
+		finally{
+			shard.lock.unlock();
+		}
+		if(merge) merge(shard);
+	}
+
+	// split and merge shards
+
+	private int indexOf(Shard<T>[] s, Shard<T> shard){
+		for(int i=0; i<s.length; i++){
+			if(s[i]==shard) return i;
+		}
+		return -1;
+	}
+
+	private void split(Shard<T> shard){
+		resizeLock.lock();
+		try{
+			Shard<T>[] s = shards;
+			int idx = indexOf(s, shard);
+			if(idx<0) return;
+			shard.lock.lock();
+			try{
+				if(shard.size<=shard.splitSize) return;
+				ArrayList<T> entries = shard.tree.getAllEntries();
+				// split before the first duplicate of the median, or after the last one
+				T mid = entries.get(entries.size() / 2);
+				int i = entries.size() / 2;
+				while(i>0 && entries.get(i - 1).compareTo(mid)==0) i--;
+				if(i==0){
+					i = entries.size() / 2;
+					while(i<entries.size() && entries.get(i).compareTo(mid)==0) i++;
+				}
+				if(i==entries.size()){
+					// all entries are the same key, wait until the shard doubles before trying again
+					shard.splitSize = shard.size * 2;
+					return;
+				}
+				// the entries are sorted, so each half is built in O(n)
+				RBTree<T> left = new RBTree<T>();
+				RBTree<T> right = new RBTree<T>();
+				left.rebuild(entries.subList(0, i));
+				right.rebuild(entries.subList(i, entries.size()));
+				Shard<T>[] t = newArray(s.length + 1);
+				System.arraycopy(s, 0, t, 0, idx);
+				t[idx] = new Shard<T>(shard.low, left, i, maxShardSize);
+				t[idx + 1] = new Shard<T>(entries.get(i), right, entries.size() - i, maxShardSize);
+				System.arraycopy(s, idx + 1, t, idx + 2, s.length - idx - 1);
+				shards = t;
+				shard.retired = true;
+			}
+			finally{
+				shard.lock.unlock();
+			}
+		}
+		finally{
+			resizeLock.unlock();
+		}
+	}
+
+	private void merge(Shard<T> shard){
+		resizeLock.lock();
+		try{
+			Shard<T>[] s = shards;
+			int idx = indexOf(s, shard);
+			if(idx<0 || s.length==1) return;
+			// merge with the smaller neighbor, a and b are adjacent in key order
+			int j = idx;
+			if(idx==s.length - 1 || (idx>0 && s[idx - 1].size<s[idx + 1].size)) j = idx - 1;
+			Shard<T> a = s[j], b = s[j + 1];
+			a.lock.lock();
+			b.lock.lock();
+			try{
+				if(shard.size>=minShardSize || a.size + b.size>maxShardSize) return;
+				// every entry of a is below every entry of b, so their sorted entries merge by
+				// concatenation and the merged tree is built in O(n)
+				ArrayList<T> entries = a.tree.getAllEntries();
+				entries.addAll(b.tree.getAllEntries());
+				RBTree<T> tree = new RBTree<T>();
+				tree.rebuild(entries);
+				Shard<T>[] t = newArray(s.length - 1);
+				System.arraycopy(s, 0, t, 0, j);
+				t[j] = new Shard<T>(a.low, tree, a.size + b.size, maxShardSize);
+				System.arraycopy(s, j + 2, t, j + 1, s.length - j - 2);
+				shards = t;
+				a.retired = true;
+				b.retired = true;
+			}
+			finally{
+				b.lock.unlock();
+				a.lock.unlock();
+			}
+		}
+		finally{
+			resizeLock.unlock();
+		}
+	}
+
+	// queries
+
+	public boolean contains(T key){
+		Shard<T> shard = lockShard(key);
+		try{
+			return shard.size>0 && shard.tree.contains(key);
+		}
+		finally{
+			shard.lock.unlock();
+		}
+	}
+
+	public int size(){
+		for(int tries=0; tries<OPTIMISTIC_TRIES; tries++){
+			Shard<T>[] s = shards;
+			long[] v = versions(s, s.length);
+			int n = 0;
+			for(Shard<T> shard : s) n += shard.size;
+			if(unchanged(s, v)) return n;
+		}
+		Shard<T>[] s = lockAll();
+		try{
+			int n = 0;
+			for(Shard<T> shard : s) n += shard.size;
+			return n;
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public boolean isEmpty(){
+		return size()==0;
+	}
+
+	public int getShardCount(){
+		return shards.length;
+	}
+
+	// prefix[i] is the number of entries in the shards before shard i
+	private int[] prefixSums(Shard<T>[] s){
+		int[] prefix = new int[s.length + 1];
+		for(int i=0; i<s.length; i++) prefix[i + 1] = prefix[i] + s[i].size;
+		return prefix;
+	}
+
+	public T getKthEntry(int k){
+		for(int tries=0; tries<OPTIMISTIC_TRIES; tries++){
+			Shard<T>[] s = shards;
+			long[] v = versions(s, s.length);
+			int[] prefix = prefixSums(s);
+			if(k<=0 || k>prefix[s.length]){
+				if(unchanged(s, v)) throw new NoSuchElementException("k exists size of tree");
+				continue;
+			}
+			int i = 0;
+			while(prefix[i + 1]<k) i++;
+			Shard<T> shard = s[i];
+			T y;
+			shard.lock.lock();
+			try{
+				if(shard.retired || shard.version!=v[i]) continue;
+				y = shard.tree.getKthEntry(k - prefix[i]);
+			}
+			finally{
+				shard.lock.unlock();
+			}
+			if(unchanged(s, Arrays.copyOf(v, i))) return y;
+		}
+		Shard<T>[] s = lockAll();
+		try{
+			int[] prefix = prefixSums(s);
+			if(k<=0 || k>prefix[s.length]) throw new NoSuchElementException("k exists size of tree");
+			// the last shard i with prefix[i] < k
+			int lo = 0, hi = s.length;
+			while(lo<hi){
+				int mid = (lo + hi) >>> 1;
+				if(prefix[mid + 1]<k) lo = mid + 1;
+				else hi = mid;
+			}
+			return s[lo].tree.getKthEntry(k - prefix[lo]);
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public int getRankOfEntry(T key){
+		for(int tries=0; tries<OPTIMISTIC_TRIES; tries++){
+			Shard<T>[] s = shards;
+			int i = find(s, key);
+			long[] v = versions(s, i);
+			int before = 0;
+			for(int j=0; j<i; j++) before += s[j].size;
+			Shard<T> shard = s[i];
+			int rank;
+			shard.lock.lock();
+			try{
+				if(shard.retired) continue;
+				if(shard.size==0) throw new NoSuchElementException("the entry is not in this tree");
+				rank = shard.tree.getRankOfEntry(key);
+			}
+			finally{
+				shard.lock.unlock();
+			}
+			if(unchanged(s, v)) return before + rank;
+		}
+		Shard<T>[] s = lockAll();
+		try{
+			int i = find(s, key);
+			if(s[i].size==0) throw new NoSuchElementException("the entry is not in this tree");
+			int rank = s[i].tree.getRankOfEntry(key);
+			for(int j=0; j<i; j++) rank += s[j].size;
+			return rank;
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public T previous(T key){
+		T y = previousOrNull(key);
+		if(y==null) throw new NoSuchElementException("this entry has no predecessor");
+		return y;
+	}
+
+	public boolean hasPrevious(T key){
+		return previousOrNull(key)!=null;
+	}
+
+	private T previousOrNull(T key){
+		Shard<T> shard = lockShard(key);
+		try{
+			if(shard.size==0 || !shard.tree.contains(key)) throw new NoSuchElementException("the entry is not in this tree");
+			if(shard.tree.hasPrevious(key)) return shard.tree.previous(key);
+		}
+		finally{
+			shard.lock.unlock();
+		}
+		// the predecessor is in an earlier shard
+		Shard<T>[] s = lockAll();
+		try{
+			int i = find(s, key);
+			if(s[i].size==0 || !s[i].tree.contains(key)) throw new NoSuchElementException("the entry is not in this tree");
+			if(s[i].tree.hasPrevious(key)) return s[i].tree.previous(key);
+			for(int j=i - 1; j>=0; j--){
+				if(s[j].size>0) return s[j].tree.max();
+			}
+			return null;
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public T next(T key){
+		T y = nextOrNull(key);
+		if(y==null) throw new NoSuchElementException("this entry has no successor");
+		return y;
+	}
+
+	public boolean hasNext(T key){
+		return nextOrNull(key)!=null;
+	}
+
+	private T nextOrNull(T key){
+		Shard<T> shard = lockShard(key);
+		try{
+			if(shard.size==0 || !shard.tree.contains(key)) throw new NoSuchElementException("the entry is not in this tree");
+			if(shard.tree.hasNext(key)) return shard.tree.next(key);
+		}
+		finally{
+			shard.lock.unlock();
+		}
+		// the successor is in a later shard
+		Shard<T>[] s = lockAll();
+		try{
+			int i = find(s, key);
+			if(s[i].size==0 || !s[i].tree.contains(key)) throw new NoSuchElementException("the entry is not in this tree");
+			if(s[i].tree.hasNext(key)) return s[i].tree.next(key);
+			for(int j=i + 1; j<s.length; j++){
+				if(s[j].size>0) return s[j].tree.min();
+			}
+			return null;
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public T min(){
+		for(int tries=0; tries<OPTIMISTIC_TRIES; tries++){
+			Shard<T>[] s = shards;
+			long[] v = versions(s, s.length);
+			int i = 0;
+			while(i<s.length && s[i].size==0) i++;
+			if(i==s.length){
+				if(unchanged(s, v)) throw new NoSuchElementException("not exist");
+				continue;
+			}
+			T y = minOrNull(s[i]);
+			if(y!=null && unchanged(s, Arrays.copyOf(v, i))) return y;
+		}
+		Shard<T>[] s = lockAll();
+		try{
+			for(int i=0; i<s.length; i++){
+				if(s[i].size>0) return s[i].tree.min();
+			}
+			throw new NoSuchElementException("not exist");
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public T max(){
+		for(int tries=0; tries<OPTIMISTIC_TRIES; tries++){
+			Shard<T>[] s = shards;
+			long[] v = versions(s, s.length);
+			int i = s.length - 1;
+			while(i>=0 && s[i].size==0) i--;
+			if(i<0){
+				if(unchanged(s, v)) throw new NoSuchElementException("not exist");
+				continue;
+			}
+			T y = maxOrNull(s[i]);
+			// the shards after i were empty
+			if(y!=null && unchanged(s, v)) return y;
+		}
+		Shard<T>[] s = lockAll();
+		try{
+			for(int i=s.length - 1; i>=0; i--){
+				if(s[i].size>0) return s[i].tree.max();
+			}
+			throw new NoSuchElementException("not exist");
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	// min or max of a live non empty shard, else null
+	private T minOrNull(Shard<T> shard){
+		shard.lock.lock();
+		try{
+			return shard.retired || shard.size==0 ? null : shard.tree.min();
+		}
+		finally{
+			shard.lock.unlock();
+		}
+	}
+
+	private T maxOrNull(Shard<T> shard){
+		shard.lock.lock();
+		try{
+			return shard.retired || shard.size==0 ? null : shard.tree.max();
+		}
+		finally{
+			shard.lock.unlock();
+		}
+	}
+
+	// verify sharded tree
+
+	public void check(){
+		Shard<T>[] s = lockAll();
+		try{
+			boolean ok = true;
+			int n = 0;
+			for(int i=0; i<s.length; i++){
+				Shard<T> shard = s[i];
+				n += shard.size;
+				if(shard.size==0){
+					if(!shard.tree.isEmpty()) ok = false;
+					continue;
+				}
+				if(shard.tree.isEmpty() || shard.tree.size()!=shard.size) ok = false;
+				else{
+					if(shard.low!=null && shard.tree.min().compareTo(shard.low)<0) ok = false;
+					if(i + 1<s.length && shard.tree.max().compareTo(s[i + 1].low)>=0) ok = false;
+				}
+			}
+			System.out.println("shards: " + s.length + " size: " + n);
+			if(ok) System.out.println("true sharded tree");
+			else System.out.println("false sharded tree");
+		}
+		finally{
+			unlockAll(s);
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException{
+		int maxThreads = Runtime.getRuntime().availableProcessors();
+		if(args.length>0) maxThreads = Integer.parseInt(args[0]);
+		int opsPerThread = 1000000;
+		System.out.println("available processors: " + Runtime.getRuntime().availableProcessors());
+		for(int threads=1; threads<=maxThreads; threads*=2){
+			final RBTree<Integer> single = new RBTree<Integer>();
+			long elapsetime = run(threads, opsPerThread, new Op(){
+				public void insert(Integer key){ synchronized(single){ single.insert(key); } }
+				public void delete(Integer key){ synchronized(single){ single.delete(key); } }
+			});
+			report("RBTree behind one lock", threads, opsPerThread, elapsetime);
+
+			final ShardedRBTree<Integer> sharded = new ShardedRBTree<Integer>();
+			elapsetime = run(threads, opsPerThread, new Op(){
+				public void insert(Integer key){ sharded.insert(key); }
+				public void delete(Integer key){ sharded.delete(key); }
+			});
+			report("ShardedRBTree", threads, opsPerThread, elapsetime);
+			sharded.check();
+			System.out.println();
+		}
+	}
+
+	private interface Op{
+		void insert(Integer key);
+		void delete(Integer key);
+	}
+
+	// each thread inserts random keys of its own key range, then deletes every other one of them
+	private static long run(int threads, final int ops, final Op op) throws InterruptedException{
+		Thread[] workers = new Thread[threads];
+		for(int t=0; t<threads; t++){
+			final int base = t << 24;
+			final Random rnd = new Random(t);
+			workers[t] = new Thread(){
+				public void run(){
+					Integer[] keys = new Integer[ops / 2];
+					for(int i=0; i<keys.length; i++) keys[i] = base + rnd.nextInt(1 << 24);
+					for(int i=0; i<keys.length; i++) op.insert(keys[i]);
+					for(int i=0; i<keys.length; i+=2) op.delete(keys[i]);
+				}
+			};
+		}
+		long starttime = System.currentTimeMillis();
+		for(Thread w : workers) w.start();
+		for(Thread w : workers) w.join();
+		return System.currentTimeMillis() - starttime;
+	}
+
+	private static void report(String name, int threads, int opsPerThread, long elapsetime){
+		int ops = threads * (opsPerThread / 2 + opsPerThread / 4);
+		System.out.println(name + ", threads: " + threads + ", " + ops + " ops, elapsed time: " + elapsetime + "ms, "
+			+ (long) (ops / Math.max(elapsetime / 1000.0, 0.001)) + " ops/s");
+	}
+}
@@ -0,0 +1,246 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Java API: Sliding Window order statistic tracker on top of RBTree, keep the last N samples or the
+samples of the last time window, answer kth entry, percentile and rank queries over the live
+window, allow duplicates
+
+Samples are kept in arrival order in a ring buffer of twice the capacity next to the tree, so the
+memory is bounded by the capacity and the oldest sample is always found in O(1). Adding a sample
+and expiring samples, by count or by time, only move the ends of the live range of the ring
+buffer. The tree lags behind and is brought up to date by the next query, or when the ring buffer
+would overwrite a sample still in the tree. A sample that arrives and expires between two queries
+never touches the tree. The pending samples are inserted one by one and the expired ones deleted
+through their handles without a search, O(lg(n)) each, unless that costs more than one pass over
+the tree, about 4 node visits per live sample since the nodes are scattered in memory. Else
+RBTree.replace() relinks the tree in one pass and only the new samples are sorted, O(n + m lg(m)).
+
+With n live samples and a query every q samples the pass is taken when q is over about 2n/lg(n),
+n/8 for a count window of 100000 and n/10 for a million samples. Measured on a single core, a
+count window of 100000 takes 490 to 630 thousand samples per second with a query every 10 or 1000
+samples and 1.1 million with one every 100000. A time window holding a million samples takes
+about 235 thousand per second with a query every 10 or 1000 samples and 350 thousand with one
+every 100000, where each pass still costs about 250ms. The target of millions of samples per
+second is not met.
+
+Usage:
+
+constructor(2):
+public SlidingWindow(int capacity), keep the last capacity samples
+eg: SlidingWindow<T> window = new SlidingWindow<T>(100000)
+
+public SlidingWindow(int capacity, long window), keep the samples whose time is within window
+                     of the newest sample, at most capacity of them
+eg: SlidingWindow<T> window = new SlidingWindow<T>(1000000, 10000)
+
+manipulate class method(2):
+public void add(long time, T val), add a sample, time must not decrease, else throw
+                     IllegalArgumentException, O(1) plus the pending work of the tree
+eg: window.add(System.currentTimeMillis(), latency)
+
+public void expire(long now), remove the samples whose time is not within window of now,
+                     O(1) per removed sample, the tree is updated by the next query
+eg: window.expire(System.currentTimeMillis())
+
+other class methods(8):
+public int size(), return the number of live samples, O(1)
+public boolean isEmpty(), O(1)
+the queries below first apply the pending work of the tree
+public T getKthEntry(int k), return the kth smallest live sample, O(lg(n))
+public T percentile(double p), return the nearest rank p-th percentile, 0 < p <= 100, O(lg(n))
+public int getRankOfEntry(T val), the same as RBTree, O(lg(n))
+public boolean contains(T val), O(lg(n))
+public T min(), public T max(), O(lg(n))
+the queries throw NoSuchElementException when the window is empty
+
+to benchmark:
+javac SlidingWindow.java RBTree.java
+java SlidingWindow
+
+***************************************************************************************************/
+
+
+import java.util.*;
+import java.util.NoSuchElementException;
+
+public class SlidingWindow<T extends Comparable<T>>{
+	private RBTree<T> tree = new RBTree<T>();
+	// ring buffer of samples indexed by sequence number % length, twice the capacity so the
+	// tree may lag behind by a whole window
+	private final Object[] vals;
+	private final long[] times;
+	private final Object[] handles;	// tree handle of each sample in the tree, else null
+	private final int capacity;
+	private final long window;	// 0 means no time window
+	private long end;	// sequence number of the next sample
+	private long liveStart;	// the live samples are [liveStart, end)
+	private long treeStart, treeEnd;	// the tree holds the samples [treeStart, treeEnd)
+	private long latest = Long.MIN_VALUE;	// time of the newest sample
+
+	public SlidingWindow(int capacity){
+		this(capacity, 0);
+	}
+
+	public SlidingWindow(int capacity, long window){
+		if(capacity<=0 || capacity>Integer.MAX_VALUE / 2) throw new IllegalArgumentException("capacity out of range");
+		if(window<0) throw new IllegalArgumentException("window must not be negative");
+		vals = new Object[2 * capacity];
+		times = new long[2 * capacity];
+		handles = new Object[2 * capacity];
+		this.capacity = capacity;
+		this.window = window;
+	}
+
+	private int slot(long seq){
+		return (int) (seq % vals.length);
+	}
+
+	public void add(long time, T val){
+		if(time<latest) throw new IllegalArgumentException("time must not decrease");
+		latest = time;
+		// the slot of the new sample still holds a sample of the tree
+		if(end - treeStart>=vals.length) sync();
+		int slot = slot(end);
+		vals[slot] = val;
+		times[slot] = time;
+		handles[slot] = null;
+		end++;
+		if(end - liveStart>capacity) liveStart++;
+	}
+
+	public void expire(long now){
+		if(window==0) return;
+		long cutoff = now - window;
+		while(liveStart<end && times[slot(liveStart)]<=cutoff) liveStart++;
+	}
+
+	// apply the pending time expiry, then bring the tree up to the live samples
+	private void expire(){
+		if(window!=0 && liveStart<end) expire(latest);
+		sync();
+	}
+
+	@SuppressWarnings("unchecked")
+	private void sync(){
+		long deleteEnd = Math.min(liveStart, treeEnd);
+		long insertStart = Math.max(treeEnd, liveStart);
+		long pending = (deleteEnd - treeStart) + (end - insertStart);
+		long live = end - liveStart;
+		// an insert or delete costs about lg(n) node visits, one pass over the tree about 4 per
+		// entry since it visits and relinks every node, most of them cache misses
+		if(pending * (64 - Long.numberOfLeadingZeros(live))>=4 * live) replace(deleteEnd, insertStart);
+		else{
+			for(long s=treeStart; s<deleteEnd; s++){
+				int slot = slot(s);
+				tree.delete((RBTree.Handle<T>) handles[slot]);
+				handles[slot] = null;
+				vals[slot] = null;
+			}
+			for(long s=insertStart; s<end; s++){
+				int slot = slot(s);
+				handles[slot] = tree.insert((T) vals[slot]);
+			}
+		}
+		treeStart = liveStart;
+		treeEnd = end;
+	}
+
+	// delete the expired samples of the tree and insert the new ones in one pass over the tree,
+	// only the new samples are sorted
+	@SuppressWarnings("unchecked")
+	private void replace(long deleteEnd, long insertStart){
+		ArrayList<RBTree.Handle<T>> removed = new ArrayList<RBTree.Handle<T>>((int) (deleteEnd - treeStart));
+		for(long s=treeStart; s<deleteEnd; s++){
+			int slot = slot(s);
+			removed.add((RBTree.Handle<T>) handles[slot]);
+			handles[slot] = null;
+			vals[slot] = null;
+		}
+		int n = (int) (end - insertStart);
+		Integer[] order = new Integer[n];
+		for(int i=0; i<n; i++) order[i] = slot(insertStart + i);
+		Arrays.sort(order, (a, b) -> ((T) vals[a]).compareTo((T) vals[b]));
+		ArrayList<T> sorted = new ArrayList<T>(n);
+		for(int i=0; i<n; i++) sorted.add((T) vals[order[i]]);
+		ArrayList<RBTree.Handle<T>> h = tree.replace(removed, sorted);
+		for(int i=0; i<n; i++) handles[order[i]] = h.get(i);
+	}
+
+	public int size(){
+		if(window!=0 && liveStart<end) expire(latest);
+		return (int) (end - liveStart);
+	}
+
+	public boolean isEmpty(){
+		return size()==0;
+	}
+
+	public T getKthEntry(int k){
+		expire();
+		return tree.getKthEntry(k);
+	}
+
+	public T percentile(double p){
+		if(!(p>0 && p<=100)) throw new IllegalArgumentException("percentile must be in (0, 100]");
+		expire();
+		int count = (int) (end - liveStart);
+		if(count==0) throw new NoSuchElementException("window is empty");
+		int k = (int) Math.ceil(p / 100 * count);
+		return tree.getKthEntry(Math.max(k, 1));
+	}
+
+	public int getRankOfEntry(T val){
+		expire();
+		return tree.getRankOfEntry(val);
+	}
+
+	public boolean contains(T val){
+		expire();
+		return tree.contains(val);
+	}
+
+	public T min(){
+		expire();
+		return tree.min();
+	}
+
+	public T max(){
+		expire();
+		return tree.max();
+	}
+
+	public static void main(String[] args){
+		Random rnd = new Random();
+		int num = 10000000;
+		int[] A = new int[num];
+		for(int i=0; i<num; i++) A[i] = rnd.nextInt(100000);
+
+		for(int every : new int[]{10, 1000, 100000}){
+			System.out.println("count window of 100000 samples, p99 every " + every + " samples:");
+			SlidingWindow<Integer> countWindow = new SlidingWindow<Integer>(100000);
+			run(countWindow, A, 1, every);
+
+			System.out.println("time window of 100000 ticks, 10 samples per tick, p99 every " + every + " samples:");
+			SlidingWindow<Integer> timeWindow = new SlidingWindow<Integer>(2000000, 100000);
+			run(timeWindow, A, 10, every);
+		}
+	}
+
+	// feed the samples, perTick samples share a tick, query p99 every every samples
+	private static void run(SlidingWindow<Integer> w, int[] A, int perTick, int every){
+		long starttime = System.currentTimeMillis();
+		long sink = 0;
+		for(int i=0; i<A.length; i++){
+			w.add(i / perTick, A[i]);
+			if(i % every==every - 1) sink += w.percentile(99);
+		}
+		long elapsetime = System.currentTimeMillis() - starttime;
+		System.out.println("live samples: " + w.size() + " p50: " + w.percentile(50) + " p99: " + w.percentile(99));
+		System.out.println(A.length + " samples, " + A.length / every + " p99 queries, elapsed time: " + elapsetime + "ms, "
+			+ (long) (A.length / (elapsetime / 1000.0)) + " samples/s");
+		w.tree.check();
+		if(sink==42) System.out.println();
+	}
+}
@@ -0,0 +1,371 @@
+/***************************************************************************************************
+
+Licensed under the Apache License, Version 2.0;
+http://www.apache.org/licenses/LICENSE-2.0
+
+Trace Replay: re-execute a trace written by RecordingRBTree against any of the trees of this
+project and report throughput, latency percentiles and allocation
+
+The trace is decoded into arrays before timing starts, then replayed as fast as possible on a
+fresh tree for every round. With one thread the operations run in trace order. With several
+threads the operations on a key go to the worker picked by the key's hash, and each worker runs
+its share in trace order, so the operations on one key keep their order and the inserts,
+deletes, contains and rank queries hit or miss the same way in every run. kth, min, max, size and
+isEmpty have no key and are dealt round robin. Like next and previous, they depend on the keys of
+the other workers, so their answers and misses may vary from run to run. The recorded thread
+ordinals are only reported. The trees that are not thread safe are guarded by one lock when
+replayed by several threads. Operations that throw NoSuchElementException, eg a delete of a
+missing key, are counted as misses. RBTree.size() throws NullPointerException on an empty tree,
+the rb target throws NoSuchElementException there instead, so the replay counts a miss where the
+recorded call failed, the other targets return 0.
+
+Latency is measured with System.nanoTime() around each operation, allocation with the HotSpot
+per thread allocation counter when the JVM provides it, else the allocation is not reported.
+
+Usage:
+
+public static <T> Trace<T> read(InputStream in, KeyCodec<T> codec), decode a trace
+public static <T> void replay(Trace<T> trace, Target<T> target, int threads), replay once
+                     and print the results
+public static <T> Target<T> rbtree(), compact(), btree(), sharded(), the trees of this project
+
+to replay a trace, target is rb, compact, btree, sharded or all:
+javac *.java
+java RecordingRBTree rank.trace
+java TraceReplay rank.trace [target] [threads] [rounds]
+
+***************************************************************************************************/
+
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.NoSuchElementException;
+
+public class TraceReplay{
+	// the operations a trace can replay against
+	public interface Target<T>{
+		void insert(T key);
+		void delete(T key);
+		boolean contains(T key);
+		T getKthEntry(int k);
+		int getRankOfEntry(T key);
+		T next(T key);
+		T previous(T key);
+		boolean hasNext(T key);
+		boolean hasPrevious(T key);
+		T min();
+		T max();
+		int size();
+		boolean isEmpty();
+		boolean isThreadSafe();
+	}
+
+	// a decoded trace
+	public static final class Trace<T>{
+		private byte[] ops;
+		private int[] threads;
+		private long[] args;	// the encoded key, or k for KTH
+		private Object[] keys;	// the decoded key, null for the ops without a key
+		private int count;
+		private int threadCount;
+		private long duration;	// nanoseconds from the first to the last record
+
+		public int size(){
+			return count;
+		}
+	}
+
+	public static <T> Trace<T> read(InputStream in, RecordingRBTree.KeyCodec<T> codec) throws IOException{
+		DataInputStream data = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+		if(data.readInt()!=RecordingRBTree.MAGIC) throw new IOException("not a trace file");
+		if(data.readByte()!=RecordingRBTree.VERSION) throw new IOException("unknown trace version");
+		Trace<T> trace = new Trace<T>();
+		int capacity = 1 << 16;
+		trace.ops = new byte[capacity];
+		trace.threads = new int[capacity];
+		trace.args = new long[capacity];
+		trace.keys = new Object[capacity];
+		while(true){
+			int op = data.read();
+			if(op<0) break;
+			if(trace.count==capacity){
+				capacity *= 2;
+				trace.ops = Arrays.copyOf(trace.ops, capacity);
+				trace.threads = Arrays.copyOf(trace.threads, capacity);
+				trace.args = Arrays.copyOf(trace.args, capacity);
+				trace.keys = Arrays.copyOf(trace.keys, capacity);
+			}
+			int i = trace.count;
+			if(op<RecordingRBTree.INSERT || op>RecordingRBTree.IS_EMPTY) throw new IOException("unknown op " + op + " at record " + i);
+			trace.count++;
+			trace.ops[i] = (byte) op;
+			trace.threads[i] = (int) readVarLong(data);
+			trace.threadCount = Math.max(trace.threadCount, trace.threads[i] + 1);
+			long delta = readVarLong(data);
+			if(i>0) trace.duration += delta;
+			if(op<=RecordingRBTree.HAS_PREVIOUS){
+				long v = readVarLong(data);
+				v = (v >>> 1) ^ -(v & 1);
+				trace.args[i] = v;
+				if(op!=RecordingRBTree.KTH) trace.keys[i] = codec.decode(v);
+			}
+		}
+		return trace;
+	}
+
+	private static long readVarLong(DataInputStream in) throws IOException{
+		long v = 0;
+		for(int shift=0; ; shift+=7){
+			int b = in.readUnsignedByte();
+			v |= (long) (b & 0x7F) << shift;
+			if((b & 0x80)==0) return v;
+		}
+	}
+
+	// replay
+
+	public static <T> void replay(Trace<T> trace, Target<T> target, int threads) throws InterruptedException{
+		final Target<T> t = threads>1 && !target.isThreadSafe() ? synchronizedTarget(target) : target;
+		// the operations of each worker, in trace order
+		int[][] parts = new int[threads][];
+		int[] sizes = new int[threads];
+		int[] owner = new int[trace.count];
+		for(int i=0; i<trace.count; i++){
+			Object key = trace.keys[i];
+			if(key==null) owner[i] = i % threads;
+			else{
+				int h = key.hashCode();
+				owner[i] = Math.floorMod(h ^ (h >>> 16), threads);
+			}
+			sizes[owner[i]]++;
+		}
+		for(int w=0; w<threads; w++) parts[w] = new int[sizes[w]];
+		Arrays.fill(sizes, 0);
+		for(int i=0; i<trace.count; i++) parts[owner[i]][sizes[owner[i]]++] = i;
+
+		final long[][] latencies = new long[threads][];
+		final long[] misses = new long[threads];
+		final long[] allocated = new long[threads];
+		final long[] sinks = new long[threads];
+		Thread[] workers = new Thread[threads];
+		for(int w=0; w<threads; w++){
+			final int id = w;
+			final int[] part = parts[w];
+			final long[] lat = new long[part.length];
+			latencies[w] = lat;
+			workers[w] = new Thread(){
+				public void run(){
+					long sink = 0;
+					long startAllocated = allocatedBytes();
+					for(int j=0; j<part.length; j++){
+						int i = part[j];
+						long starttime = System.nanoTime();
+						try{
+							sink += execute(t, trace, i);
+						}
+						catch(NoSuchElementException e){
+							misses[id]++;
+						}
+						lat[j] = System.nanoTime() - starttime;
+					}
+					allocated[id] = startAllocated<0 ? -1 : allocatedBytes() - startAllocated;
+					sinks[id] = sink;
+				}
+			};
+		}
+		long starttime = System.nanoTime();
+		for(Thread w : workers) w.start();
+		for(Thread w : workers) w.join();
+		double elapsed = (System.nanoTime() - starttime) / 1e9;
+
+		long[] all = new long[trace.count];
+		int index = 0;
+		long missCount = 0, bytes = 0;
+		for(int w=0; w<threads; w++){
+			System.arraycopy(latencies[w], 0, all, index, latencies[w].length);
+			index += latencies[w].length;
+			missCount += misses[w];
+			if(allocated[w]<0 || bytes<0) bytes = -1;
+			else bytes += allocated[w];
+		}
+		Arrays.sort(all);
+		int n = trace.count;
+		System.out.println("  " + n + " ops, " + missCount + " misses, elapsed time: " + (long) (elapsed * 1000) + "ms, "
+			+ (long) (n / Math.max(elapsed, 1e-9)) + " ops/s");
+		if(n>0){
+			System.out.println("  latency p50: " + all[n / 2] + "ns, p99: " + all[(int) (n * 0.99)] + "ns, p99.9: "
+				+ all[(int) (n * 0.999)] + "ns, max: " + all[n - 1] + "ns");
+		}
+		// bytes is -1 when the JVM does not count allocation
+		if(bytes>=0) System.out.println("  allocated: " + bytes + " bytes, " + String.format("%.1f", (double) bytes / Math.max(n, 1)) + " bytes/op");
+		long sink = 0;
+		for(long s : sinks) sink += s;
+		if(sink==42) System.out.println();
+	}
+
+	private static <T> long execute(Target<T> t, Trace<T> trace, int i){
+		@SuppressWarnings("unchecked")
+		T key = (T) trace.keys[i];
+		switch(trace.ops[i]){
+		case RecordingRBTree.INSERT: t.insert(key); return 1;
+		case RecordingRBTree.DELETE: t.delete(key); return 1;
+		case RecordingRBTree.CONTAINS: return t.contains(key) ? 1 : 0;
+		case RecordingRBTree.KTH: return t.getKthEntry((int) trace.args[i]).hashCode();
+		case RecordingRBTree.RANK: return t.getRankOfEntry(key);
+		case RecordingRBTree.NEXT: return t.next(key).hashCode();
+		case RecordingRBTree.PREVIOUS: return t.previous(key).hashCode();
+		case RecordingRBTree.HAS_NEXT: return t.hasNext(key) ? 1 : 0;
+		case RecordingRBTree.HAS_PREVIOUS: return t.hasPrevious(key) ? 1 : 0;
+		case RecordingRBTree.MIN: return t.min().hashCode();
+		case RecordingRBTree.MAX: return t.max().hashCode();
+		case RecordingRBTree.SIZE: return t.size();
+		case RecordingRBTree.IS_EMPTY: return t.isEmpty() ? 1 : 0;
+		default: throw new IllegalStateException("unknown op " + trace.ops[i]);
+		}
+	}
+
+	// bytes allocated by the current thread, -1 if the JVM does not count them
+	private static long allocatedBytes(){
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if(!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+
+	// targets
+
+	public static <T extends Comparable<T>> Target<T> rbtree(){
+		final RBTree<T> tree = new RBTree<T>();
+		return new Target<T>(){
+			public void insert(T key){ tree.insert(key); }
+			public void delete(T key){ tree.delete(key); }
+			public boolean contains(T key){ return tree.contains(key); }
+			public T getKthEntry(int k){ return tree.getKthEntry(k); }
+			public int getRankOfEntry(T key){ return tree.getRankOfEntry(key); }
+			public T next(T key){ return tree.next(key); }
+			public T previous(T key){ return tree.previous(key); }
+			public boolean hasNext(T key){ return tree.hasNext(key); }
+			public boolean hasPrevious(T key){ return tree.hasPrevious(key); }
+			public T min(){ return tree.min(); }
+			public T max(){ return tree.max(); }
+			public int size(){
+				// RBTree.size() fails on an empty tree, fail the same way but as a miss
+				if(tree.isEmpty()) throw new NoSuchElementException("the tree is empty");
+				return tree.size();
+			}
+			public boolean isEmpty(){ return tree.isEmpty(); }
+			public boolean isThreadSafe(){ return false; }
+		};
+	}
+
+	public static <T extends Comparable<T>> Target<T> compact(){
+		final CompactRBTree<T> tree = new CompactRBTree<T>();
+		return new Target<T>(){
+			public void insert(T key){ tree.insert(key); }
+			public void delete(T key){ tree.delete(key); }
+			public boolean contains(T key){ return tree.contains(key); }
+			public T getKthEntry(int k){ return tree.getKthEntry(k); }
+			public int getRankOfEntry(T key){ return tree.getRankOfEntry(key); }
+			public T next(T key){ return tree.next(key); }
+			public T previous(T key){ return tree.previous(key); }
+			public boolean hasNext(T key){ return tree.hasNext(key); }
+			public boolean hasPrevious(T key){ return tree.hasPrevious(key); }
+			public T min(){ return tree.min(); }
+			public T max(){ return tree.max(); }
+			public int size(){ return tree.size(); }
+			public boolean isEmpty(){ return tree.isEmpty(); }
+			public boolean isThreadSafe(){ return false; }
+		};
+	}
+
+	public static <T extends Comparable<T>> Target<T> btree(){
+		final CountedBTree<T> tree = new CountedBTree<T>();
+		return new Target<T>(){
+			public void insert(T key){ tree.insert(key); }
+			public void delete(T key){ tree.delete(key); }
+			public boolean contains(T key){ return tree.contains(key); }
+			public T getKthEntry(int k){ return tree.getKthEntry(k); }
+			public int getRankOfEntry(T key){ return tree.getRankOfEntry(key); }
+			public T next(T key){ return tree.next(key); }
+			public T previous(T key){ return tree.previous(key); }
+			public boolean hasNext(T key){ return tree.hasNext(key); }
+			public boolean hasPrevious(T key){ return tree.hasPrevious(key); }
+			public T min(){ return tree.min(); }
+			public T max(){ return tree.max(); }
+			public int size(){ return tree.size(); }
+			public boolean isEmpty(){ return tree.isEmpty(); }
+			public boolean isThreadSafe(){ return false; }
+		};
+	}
+
+	public static <T extends Comparable<T>> Target<T> sharded(){
+		final ShardedRBTree<T> tree = new ShardedRBTree<T>();
+		return new Target<T>(){
+			public void insert(T key){ tree.insert(key); }
+			public void delete(T key){ tree.delete(key); }
+			public boolean contains(T key){ return tree.contains(key); }
+			public T getKthEntry(int k){ return tree.getKthEntry(k); }
+			public int getRankOfEntry(T key){ return tree.getRankOfEntry(key); }
+			public T next(T key){ return tree.next(key); }
+			public T previous(T key){ return tree.previous(key); }
+			public boolean hasNext(T key){ return tree.hasNext(key); }
+			public boolean hasPrevious(T key){ return tree.hasPrevious(key); }
+			public T min(){ return tree.min(); }
+			public T max(){ return tree.max(); }
+			public int size(){ return tree.size(); }
+			public boolean isEmpty(){ return tree.isEmpty(); }
+			public boolean isThreadSafe(){ return true; }
+		};
+	}
+
+	// guard a target that is not thread safe with one lock
+	private static <T> Target<T> synchronizedTarget(final Target<T> t){
+		return new Target<T>(){
+			public synchronized void insert(T key){ t.insert(key); }
+			public synchronized void delete(T key){ t.delete(key); }
+			public synchronized boolean contains(T key){ return t.contains(key); }
+			public synchronized T getKthEntry(int k){ return t.getKthEntry(k); }
+			public synchronized int getRankOfEntry(T key){ return t.getRankOfEntry(key); }
+			public synchronized T next(T key){ return t.next(key); }
+			public synchronized T previous(T key){ return t.previous(key); }
+			public synchronized boolean hasNext(T key){ return t.hasNext(key); }
+			public synchronized boolean hasPrevious(T key){ return t.hasPrevious(key); }
+			public synchronized T min(){ return t.min(); }
+			public synchronized T max(){ return t.max(); }
+			public synchronized int size(){ return t.size(); }
+			public synchronized boolean isEmpty(){ return t.isEmpty(); }
+			public boolean isThreadSafe(){ return true; }
+		};
+	}
+
+	private static Target<Integer> newTarget(String name){
+		if(name.equals("rb")) return rbtree();
+		if(name.equals("compact")) return compact();
+		if(name.equals("btree")) return btree();
+		if(name.equals("sharded")) return sharded();
+		throw new IllegalArgumentException("unknown target " + name + ", use rb, compact, btree, sharded or all");
+	}
+
+	public static void main(String[] args) throws Exception{
+		if(args.length==0){
+			System.out.println("usage: java TraceReplay <trace file> [rb|compact|btree|sharded|all] [threads] [rounds]");
+			return;
+		}
+		String target = args.length>1 ? args[1] : "all";
+		int threads = args.length>2 ? Integer.parseInt(args[2]) : 1;
+		int rounds = args.length>3 ? Integer.parseInt(args[3]) : 3;
+		Trace<Integer> trace;
+		try(InputStream in = new FileInputStream(args[0])){
+			trace = read(in, RecordingRBTree.INTEGER);
+		}
+		System.out.println(args[0] + ": " + trace.count + " ops from " + trace.threadCount + " threads, recorded over "
+			+ trace.duration / 1000000 + "ms");
+		String[] names = target.equals("all") ? new String[]{"rb", "compact", "btree", "sharded"} : new String[]{target};
+		for(String name : names){
+			for(int round=1; round<=rounds; round++){
+				System.out.println(name + ", threads: " + threads + ", round " + round + ":");
+				replay(trace, newTarget(name), threads);
+			}
+		}
+	}
+}